@@ -0,0 +1,137 @@
+package couchbase;
+
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The CPU-bound conversions every request goes through: parsing a POST/PUT body with
+ * JsonObject.fromJson, turning a query row into a map with toMap as extractResultOrThrow
+ * does, and serializing that map with Jackson the way Spring writes the response.
+ *
+ * Run with `mvn -P jmh test-compile exec:exec` or `gradle jmh`, both of which add the GC
+ * profiler so allocation per operation is reported next to the timings.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConversionBenchmark {
+
+    @Param({ "patient.small", "patient.typical", "patient.large", "doctor", "appointment" })
+    private String payload;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private String json;
+
+    private JsonObject document;
+
+    private Map<String, Object> map;
+
+    @Setup
+    public void setup() {
+        document = create(payload, new Random(42));
+        json = document.toString();
+        map = document.toMap();
+    }
+
+    @Benchmark
+    public JsonObject fromJson() {
+        return JsonObject.fromJson(json);
+    }
+
+    @Benchmark
+    public Map<String, Object> toMap() {
+        return document.toMap();
+    }
+
+    @Benchmark
+    public byte[] jackson() throws Exception {
+        return mapper.writeValueAsBytes(map);
+    }
+
+    @Benchmark
+    public byte[] readPath() throws Exception {
+        return mapper.writeValueAsBytes(JsonObject.fromJson(json).toMap());
+    }
+
+    static JsonObject create(String payload, Random random) {
+        switch(payload) {
+            case "patient.small": return patient(random, 0);
+            case "patient.typical": return patient(random, 10);
+            case "patient.large": return patient(random, 1000);
+            case "doctor": return doctor(random, 50);
+            case "appointment": return appointment(random);
+            default: throw new IllegalArgumentException("Unknown payload: " + payload);
+        }
+    }
+
+    private static JsonObject patient(Random random, int notes) {
+        JsonArray history = JsonArray.create();
+        long timestamp = 1483228800L;
+        for(int i = 0; i < notes; i++) {
+            timestamp += random.nextInt(86400);
+            history.add(JsonObject.create()
+                .put("doctor", UUID.randomUUID().toString())
+                .put("message", sentence(random, 8 + random.nextInt(40)))
+                .put("timestamp", timestamp));
+        }
+        return JsonObject.create()
+            .put("type", "patient")
+            .put("information", information(random))
+            .put("notes", history)
+            .put("timestamp", timestamp);
+    }
+
+    private static JsonObject doctor(Random random, int patients) {
+        JsonArray ids = JsonArray.create();
+        for(int i = 0; i < patients; i++) {
+            ids.add(UUID.randomUUID().toString());
+        }
+        return JsonObject.create()
+            .put("type", "doctor")
+            .put("information", information(random))
+            .put("department", DEPARTMENTS[random.nextInt(DEPARTMENTS.length)])
+            .put("patients", ids)
+            .put("timestamp", 1483228800L + random.nextInt(86400 * 365));
+    }
+
+    private static JsonObject appointment(Random random) {
+        return JsonObject.create()
+            .put("type", "appointment")
+            .put("doctor", UUID.randomUUID().toString())
+            .put("patient", UUID.randomUUID().toString())
+            .put("appointment", 1483228800L + random.nextInt(86400 * 365))
+            .put("timestamp", 1483228800L + random.nextInt(86400 * 365));
+    }
+
+    private static JsonObject information(Random random) {
+        return JsonObject.create()
+            .put("firstname", NAMES[random.nextInt(NAMES.length)])
+            .put("lastname", NAMES[random.nextInt(NAMES.length)] + "son")
+            .put("gender", random.nextBoolean() ? "male" : "female");
+    }
+
+    private static String sentence(Random random, int words) {
+        StringBuilder sentence = new StringBuilder();
+        for(int i = 0; i < words; i++) {
+            sentence.append(i == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sentence.append('.').toString();
+    }
+
+    private static final String[] NAMES = { "Nic", "Arun", "Laura", "Matt", "Todd", "Tyler", "Jeff", "Hod" };
+
+    private static final String[] DEPARTMENTS = { "cardiology", "oncology", "pediatrics", "neurology", "radiology" };
+
+    private static final String[] WORDS = { "patient", "reports", "mild", "fever", "headache", "prescribed",
+        "rest", "fluids", "follow", "up", "in", "two", "weeks", "blood", "pressure", "normal", "allergy",
+        "to", "penicillin", "chest", "pain", "resolved", "x-ray", "clear", "cough", "persistent" };
+
+}
@@ -0,0 +1,90 @@
+package couchbase;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.Cluster;
+import com.couchbase.client.java.CouchbaseCluster;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.util.rawQuerying.AsyncRawQueryExecutor;
+import org.openjdk.jmh.annotations.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A /patients/condition search answered by the embedded {@link InvertedIndex} and by the
+ * remote `medical-condition` FTS index, over the same {@link Workload} patients.
+ *
+ * The `embedded` backend indexes the patients in the benchmark itself. The `fts` backend
+ * queries the cluster named by the `hostname`, `bucket`, `rbac.username` and
+ * `rbac.password` system properties, which must hold the data set loaded with
+ * `LoadGenerator --setup=true --patients=<patients>`; run only the embedded side with
+ * `-p backend=embedded`. To compare the whole request path instead, run LoadGenerator with
+ * `--mix=patients.condition:1` against the application started with each `search.backend`.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+
+    private static final List<String> FIELDS = Arrays.asList(InvertedIndex.FIRSTNAME, InvertedIndex.LASTNAME, InvertedIndex.MESSAGE);
+
+    @Param({ "embedded", "fts" })
+    private String backend;
+
+    @Param({ "10000" })
+    private int patients;
+
+    @Param({ "0", "2" })
+    private int fuzziness;
+
+    private InvertedIndex index;
+
+    private Cluster cluster;
+
+    private AsyncRawQueryExecutor executor;
+
+    private final Random random = new Random(42);
+
+    @Setup
+    public void setup() {
+        if("embedded".equals(backend)) {
+            Workload workload = new Workload(200, patients, 0, 1505088000L);
+            index = new InvertedIndex();
+            for(int i = 0; i < patients; i++) {
+                JsonObject patient = workload.patient(i);
+                List<String> messages = new ArrayList<String>();
+                for(Object note : patient.getArray("notes")) {
+                    messages.add(((JsonObject) note).getString("message"));
+                }
+                index.put(patient.getString("id"), patient.getObject("information").getString("firstname"),
+                    patient.getObject("information").getString("lastname"), messages);
+            }
+        } else {
+            cluster = CouchbaseCluster.create(System.getProperty("hostname", "localhost"));
+            cluster.authenticate(System.getProperty("rbac.username", "demo"), System.getProperty("rbac.password", "123456"));
+            Bucket bucket = cluster.openBucket(System.getProperty("bucket", "default"));
+            executor = new AsyncRawQueryExecutor(bucket.name(), System.getProperty("rbac.username", "demo"),
+                System.getProperty("rbac.password", "123456"), bucket.core());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if(cluster != null) {
+            cluster.disconnect();
+        }
+    }
+
+    @Benchmark
+    public JsonObject search() {
+        String condition = Workload.CONDITIONS[random.nextInt(Workload.CONDITIONS.length)];
+        if(index != null) {
+            return index.search(condition, fuzziness, FIELDS, true, ConditionSearch.SIZE, 0, null);
+        }
+        ConditionSearch.Query query = new ConditionSearch.Query(condition, fuzziness == 0 ? null : fuzziness, FIELDS, true);
+        return executor.ftsToJsonObject(query.toSearchQuery()).toBlocking().single();
+    }
+
+}
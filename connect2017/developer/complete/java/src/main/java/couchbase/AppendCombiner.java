@@ -0,0 +1,125 @@
+package couchbase;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.subdoc.MultiMutationException;
+import com.couchbase.client.java.subdoc.AsyncMutateInBuilder;
+import com.couchbase.client.java.subdoc.SubdocOptionsBuilder;
+import rx.Observable;
+import rx.subjects.AsyncSubject;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Group commit for array appends to the same document. The first append to a document is
+ * written right away; appends arriving while that write is in flight are queued and then
+ * written together as one multi-spec mutateIn, one `arrayAppend` per value and at most
+ * `maxBatch` of them. A multi-spec mutation is applied all or nothing, so when one spec fails
+ * only its caller gets the error and the rest of the batch is written again without it.
+ */
+final class AppendCombiner {
+
+    private final Bucket bucket;
+
+    private final Metrics metrics;
+
+    private final String path;
+
+    private final int maxBatch;
+
+    private final Map<String, List<Pending>> waiting = new ConcurrentHashMap<String, List<Pending>>();
+
+    AppendCombiner(Bucket bucket, Metrics metrics, String path, int maxBatch) {
+        this.bucket = bucket;
+        this.metrics = metrics;
+        this.path = path;
+        this.maxBatch = Math.max(1, Math.min(16, maxBatch));
+    }
+
+    /**
+     * Appends the value to the array at `path` of the document, creating the array if needed,
+     * and emits it once it is written.
+     */
+    Observable<JsonObject> append(String id, JsonObject value) {
+        return Observable.defer(() -> {
+            Pending pending = new Pending(value);
+            boolean[] first = new boolean[1];
+            waiting.compute(id, (key, queue) -> {
+                if(queue == null) {
+                    first[0] = true;
+                    return new ArrayList<Pending>();
+                }
+                queue.add(pending);
+                return queue;
+            });
+            if(first[0]) {
+                write(id, Collections.singletonList(pending));
+            }
+            return pending.result;
+        });
+    }
+
+    private void write(String id, List<Pending> batch) {
+        SubdocOptionsBuilder options = new SubdocOptionsBuilder();
+        options.createParents(true);
+        AsyncMutateInBuilder mutation = bucket.async().mutateIn(id);
+        for(Pending pending : batch) {
+            mutation.arrayAppend(path, pending.value, options);
+        }
+        metrics.timed("kv", "mutateIn", mutation.execute()).subscribe(
+            fragment -> {
+                for(Pending pending : batch) {
+                    pending.result.onNext(pending.value);
+                    pending.result.onCompleted();
+                }
+                next(id);
+            },
+            e -> {
+                if(e instanceof MultiMutationException) {
+                    int failed = ((MultiMutationException) e).firstFailureIndex();
+                    batch.get(failed).result.onError(e.getCause() != null ? e.getCause() : e);
+                    List<Pending> rest = new ArrayList<Pending>(batch);
+                    rest.remove(failed);
+                    if(!rest.isEmpty()) {
+                        write(id, rest);
+                        return;
+                    }
+                } else {
+                    for(Pending pending : batch) {
+                        pending.result.onError(e);
+                    }
+                }
+                next(id);
+            });
+    }
+
+    /**
+     * Starts the write of the appends queued for the document meanwhile, or marks it idle.
+     */
+    private void next(String id) {
+        List<Pending> batch = new ArrayList<Pending>();
+        waiting.compute(id, (key, queue) -> {
+            if(queue == null || queue.isEmpty()) {
+                return null;
+            }
+            List<Pending> taken = queue.subList(0, Math.min(maxBatch, queue.size()));
+            batch.addAll(taken);
+            taken.clear();
+            return queue;
+        });
+        if(!batch.isEmpty()) {
+            write(id, batch);
+        }
+    }
+
+    private static final class Pending {
+
+        private final JsonObject value;
+        private final AsyncSubject<JsonObject> result = AsyncSubject.create();
+
+        private Pending(JsonObject value) {
+            this.value = value;
+        }
+    }
+
+}
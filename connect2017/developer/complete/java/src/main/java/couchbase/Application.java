@@ -5,8 +5,10 @@ import com.couchbase.client.java.*;
 import com.couchbase.client.java.auth.Authenticator;
 import com.couchbase.client.java.env.*;
 import com.couchbase.client.java.CouchbaseCluster;
+import com.couchbase.client.java.document.json.JsonArray;
 import com.couchbase.client.java.document.json.JsonObject;
 import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
 import com.couchbase.client.java.query.*;
 import com.couchbase.client.java.query.consistency.ScanConsistency;
 import com.couchbase.client.java.search.HighlightStyle;
@@ -16,7 +18,7 @@ import com.couchbase.client.java.search.queries.QueryStringQuery;
 import com.couchbase.client.java.search.result.SearchQueryResult;
 import com.couchbase.client.java.subdoc.DocumentFragment;
 import com.couchbase.client.java.subdoc.SubdocOptionsBuilder;
-import com.couchbase.client.java.util.rawQuerying.RawQueryExecutor;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.*;
@@ -24,9 +26,14 @@ import org.springframework.context.annotation.*;
 import org.springframework.http.*;
 import org.springframework.dao.DataRetrievalFailureException;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import rx.Observable;
 import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.IOException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 
@@ -66,6 +73,57 @@ public class Application implements Filter {
     @Value("${rbac.password}")
     private String password;
 
+    private static final int MAX_LAST_NOTES = 100;
+
+    @Value("${passthrough.enabled:true}")
+    private boolean passthrough;
+
+    @Autowired
+    private AsyncSupport async;
+
+    @Autowired
+    private ConditionSearch conditionSearch;
+
+    @Autowired
+    private StatementRegistry statements;
+
+    @Autowired
+    private MutationFeed mutations;
+
+    @Autowired
+    private AppointmentIndex appointmentIndex;
+
+    @Autowired
+    private NoteStore noteStore;
+
+    @Autowired
+    private BulkImporter importer;
+
+    @Autowired
+    private DoctorPatients doctorPatients;
+
+    @Autowired
+    private DocumentCache documentCache;
+
+    @Autowired
+    private Coalescer coalescer;
+
+    @Autowired
+    private Metrics metrics;
+
+    @Autowired
+    private AppointmentCalendar calendar;
+
+    @Autowired
+    private AppointmentDeletes appointmentDeletes;
+
+    @Autowired
+    private SlotReservations reservations;
+
+    @Autowired
+    private DoctorStats doctorStats;
+
+    @Profile("!memory")
     public @Bean
     Cluster cluster() {
         CouchbaseCluster cluster = CouchbaseCluster.create(hostname);
@@ -73,286 +131,430 @@ public class Application implements Filter {
         return cluster;
     }
 
+    @Profile("!memory")
     public @Bean
     Bucket bucket() {
         return cluster().openBucket(bucket);
     }
 
     @RequestMapping(value="/patients", method= RequestMethod.GET)
-    public Object getPatients() {
-        String statement = "SELECT META().id, `" + bucket().name() + "`.* FROM `" + bucket().name() + "` WHERE type = 'patient'";
-        N1qlQueryResult result = bucket().query(N1qlQuery.simple(statement));
-        return extractResultOrThrow(result);
-        // The RxJava Approach
-        /*return bucket().async().query(N1qlQuery.simple(statement))
-            .flatMap(result -> result.errors().switchIfEmpty(result.rows().map(AsyncN1qlQueryRow::value)))
-            .map(result -> result.toMap())
-            .toList()
-            .timeout(10, TimeUnit.SECONDS)
-            .toBlocking()
-            .single();*/
+    public DeferredResult<Object> getPatients(@RequestParam(value = "after", required = false) String after, @RequestParam(value = "limit", required = false) Integer limit) {
+        if(after != null || limit != null) {
+            return page("patients", after, limit);
+        }
+        return async.defer("patients", coalescer.coalesce("patients", "", () -> statements.query("patients")
+            .flatMap(this::extractResultOrThrow)));
+    }
+
+    @RequestMapping(value="/patients", method= RequestMethod.GET, params="stream=true")
+    public ResponseEntity<ResponseBodyEmitter> streamPatients() {
+        return async.stream("patients", statements.query("patients"));
     }
 
     @RequestMapping(value="/patient/{patientid}", method= RequestMethod.GET)
-    public Object getPatientById(@PathVariable("patientid") String id) {
-        return bucket().get(id).content().toMap();
-        // The RxJava Approach
-        /*return bucket().async().get(id)
-            .map(result -> result.content().toMap())
-            .timeout(10, TimeUnit.SECONDS)
-            .toBlocking()
-            .single();*/
+    public DeferredResult<Object> getPatientById(@PathVariable("patientid") String id, @RequestParam(value = "exclude", required = false) String exclude,
+                                                 @RequestParam(value = "fields", required = false) String fields, @RequestParam(value = "notes.last", required = false) Integer lastNotes) {
+        if(fields != null || lastNotes != null) {
+            return getFields("patient", id, fields, lastNotes);
+        }
+        return getById("patient", id, RawJson.fields(exclude));
     }
 
     @RequestMapping(value="/patient/appointments/{patientid}", method= RequestMethod.GET)
-    public Object getAppointmentsByPatientId(@PathVariable("patientid") String id) {
-        String statement = "SELECT `" + bucket().name() + "`.* FROM `" + bucket().name() + "` WHERE type = 'appointment' AND patient = $id";
+    public DeferredResult<Object> getAppointmentsByPatientId(@PathVariable("patientid") String id) {
+        if(appointmentIndex.ready()) {
+            return async.defer("patient.appointments", coalescer.coalesce("patient.appointments", id, () -> getAll(appointmentIndex.byPatient(id))));
+        }
         JsonObject parameters = JsonObject.create().put("id", id);
-        ParameterizedN1qlQuery query = ParameterizedN1qlQuery.parameterized(statement, parameters);
-        N1qlQueryResult result = bucket().query(query);
-        return extractResultOrThrow(result);
-        // The RxJava Approach
-        /*return bucket().async().query(query)
-            .flatMap(result -> result.errors().switchIfEmpty(result.rows().map(AsyncN1qlQueryRow::value)))
-            .map(result -> result.toMap())
-            .toList()
-            .timeout(10, TimeUnit.SECONDS)
-            .toBlocking()
-            .single();*/
+        return async.defer("patient.appointments", coalescer.coalesce("patient.appointments", id, () -> statements.query("appointments.patient", parameters)
+            .flatMap(this::extractResultOrThrow)));
     }
 
     @RequestMapping(value="/patients/condition", method=RequestMethod.POST)
-    public Object getPatientsByNotes(@RequestBody String payload) {
-        JsonObject jsonData = JsonObject.fromJson(payload);
+    public DeferredResult<Object> getPatientsByNotes(@RequestBody String payload) {
+        ConditionSearch.Query query;
+        try {
+            query = conditionQuery(JsonObject.fromJson(payload));
+        } catch (IllegalArgumentException e) {
+            return async.done(new ResponseEntity<String>(JsonObject.create().put("message", e.getMessage()).toString(), HttpStatus.BAD_REQUEST));
+        }
+        return async.defer("patients.condition", conditionSearch.search(query));
+    }
+
+    @RequestMapping(value="/patients/condition", method=RequestMethod.POST, params="stream=true")
+    public ResponseEntity<ResponseBodyEmitter> streamPatientsByNotes(@RequestBody String payload) {
+        ConditionSearch.Query query;
+        try {
+            query = conditionQuery(JsonObject.fromJson(payload));
+        } catch (IllegalArgumentException e) {
+            return async.stream(new ResponseEntity<String>(JsonObject.create().put("message", e.getMessage()).toString(), HttpStatus.BAD_REQUEST));
+        }
+        JsonObject summary = JsonObject.create();
+        return async.stream("patients.condition", "hits", conditionSearch.stream(query, summary), summary);
+    }
+
+    /**
+     * The search described by a /patients/condition body, or IllegalArgumentException with
+     * the message to answer 400 with.
+     */
+    private ConditionSearch.Query conditionQuery(JsonObject jsonData) {
         if(jsonData.getString("search") == null || jsonData.getString("search") == "") {
-            return new ResponseEntity<String>(JsonObject.create().put("message", "A `search` string is required").toString(), HttpStatus.BAD_REQUEST);
+            throw new IllegalArgumentException("A `search` string is required");
         }
-        MatchQuery fts = SearchQuery.match(jsonData.getString("search"));
-        if(jsonData.containsKey("fuzziness")) {
-            fts.fuzziness(jsonData.getInt("fuzziness"));
+        Integer fuzziness = jsonData.containsKey("fuzziness") ? jsonData.getInt("fuzziness") : null;
+        if(fuzziness != null && (fuzziness < 0 || fuzziness > InvertedIndex.MAX_FUZZINESS)) {
+            throw new IllegalArgumentException("`fuzziness` must be between 0 and " + InvertedIndex.MAX_FUZZINESS);
         }
-        SearchQuery query = new SearchQuery("medical-condition", fts);
-        query.fields("information.firstname", "information.lastname", "notes.message");
-        query.highlight(HighlightStyle.HTML, "notes.message");
-        RawQueryExecutor rawQueryExecutor = new RawQueryExecutor(bucket().name(), username, password, bucket().core(), bucket().environment());
-        return rawQueryExecutor.ftsToJsonObject(query).toMap();
+        int size = jsonData.containsKey("size") ? jsonData.getInt("size") : ConditionSearch.SIZE;
+        int from = jsonData.containsKey("from") ? jsonData.getInt("from") : 0;
+        Double minScore = jsonData.containsKey("min_score") ? jsonData.getDouble("min_score") : null;
+        return new ConditionSearch.Query(jsonData.getString("search"), fuzziness, Arrays.asList("information.firstname", "information.lastname", "notes.message"), true,
+            size, from, minScore, jsonData.getString("after"));
     }
 
     @RequestMapping(value="/patient", method=RequestMethod.POST)
-    public Object createPatient(@RequestBody String payload) {
+    public DeferredResult<Object> createPatient(@RequestBody String payload) {
         JsonObject jsonData = JsonObject.fromJson(payload);
-        if(jsonData.getObject("information") == null) {
-            return new ResponseEntity<String>(JsonObject.create().put("message", "An `information` object is required").toString(), HttpStatus.BAD_REQUEST);
+        String invalid = Records.validate("patient", jsonData);
+        if(invalid != null) {
+            return async.done(new ResponseEntity<String>(JsonObject.create().put("message", invalid).toString(), HttpStatus.BAD_REQUEST));
         }
         jsonData.put("type", "patient");
         jsonData.put("timestamp", System.currentTimeMillis() / 1000L);
-        if(jsonData.getObject("information") == null) {
-            return new ResponseEntity<String>(JsonObject.create().put("message", "An `information` object is required").toString(), HttpStatus.BAD_REQUEST);
-        }
         JsonDocument document = JsonDocument.create(UUID.randomUUID().toString(), jsonData);
-        try {
-            bucket().insert(document);
-            return new ResponseEntity<String>(jsonData.toString(), HttpStatus.OK);
-        } catch (Exception e) {
-            throw new RuntimeException("Error: " + e.getMessage());
-        }
-        // The RxJava Approach
-        /*return bucket().async().insert(document)
-            .map(result -> payload)
-            .timeout(10, TimeUnit.SECONDS)
-            .toBlocking()
-            .single();*/
+        return async.defer("patient.create", metrics.timed("kv", "insert", bucket().async().insert(document))
+            .doOnNext(result -> mutations.publish(Mutation.upsert(result.id(), jsonData)))
+            .map(result -> new ResponseEntity<String>(jsonData.toString(), HttpStatus.OK))
+            .onErrorResumeNext(e -> Observable.error(new RuntimeException("Error: " + e.getMessage()))));
     }
 
     @RequestMapping(value="/patient/notes/{patientid}", method=RequestMethod.PUT)
-    public Object createNoteByPatientId(@PathVariable("patientid") String id, @RequestBody String payload) {
+    public DeferredResult<Object> createNoteByPatientId(@PathVariable("patientid") String id, @RequestBody String payload) {
         JsonObject jsonData = JsonObject.fromJson(payload);
         if(jsonData.getString("doctor") == null || jsonData.getString("doctor") == "") {
-            return new ResponseEntity<String>(JsonObject.create().put("message", "A `doctor` string is required").toString(), HttpStatus.BAD_REQUEST);
+            return async.done(new ResponseEntity<String>(JsonObject.create().put("message", "A `doctor` string is required").toString(), HttpStatus.BAD_REQUEST));
         } else if(jsonData.getString("message") == null || jsonData.getString("message") == "") {
-            return new ResponseEntity<String>(JsonObject.create().put("message", "A `message` string is required").toString(), HttpStatus.BAD_REQUEST);
+            return async.done(new ResponseEntity<String>(JsonObject.create().put("message", "A `message` string is required").toString(), HttpStatus.BAD_REQUEST));
         }
         jsonData.put("timestamp", System.currentTimeMillis() / 1000L);
-        SubdocOptionsBuilder builder = new SubdocOptionsBuilder();
-        builder.createParents(true);
-        bucket().mutateIn(id).arrayAppend("notes", jsonData, builder).execute();
-        return new ResponseEntity<String>(payload, HttpStatus.OK);
+        return async.defer("patient.notes", noteStore.append(id, jsonData)
+            .doOnTerminate(() -> documentCache.invalidate(id))
+            .flatMap(result -> doctorStats.note(jsonData.getString("doctor")).map(counted -> result))
+            .doOnNext(result -> conditionSearch.noteAdded(id, jsonData.getString("message")))
+            .map(result -> new ResponseEntity<String>(payload, HttpStatus.OK)));
+    }
+
+    @RequestMapping(value="/patient/notes/{patientid}", method= RequestMethod.GET)
+    public DeferredResult<Object> getNotesByPatientId(@PathVariable("patientid") String id, @RequestParam(value = "before", required = false) Long before,
+                                                @RequestParam(value = "skip", required = false) Integer skip, @RequestParam(value = "limit", required = false, defaultValue = "20") int limit) {
+        if(limit < 1) {
+            return async.done(new ResponseEntity<String>(JsonObject.create().put("message", "A positive `limit` is required").toString(), HttpStatus.BAD_REQUEST));
+        } else if(skip != null && skip < 0) {
+            return async.done(new ResponseEntity<String>(JsonObject.create().put("message", "A non-negative `skip` is required").toString(), HttpStatus.BAD_REQUEST));
+        }
+        long cursor = before != null ? before : System.currentTimeMillis() / 1000L + 1;
+        // without `skip`, `before` keeps its original meaning of strictly older notes
+        int skipped = skip != null ? skip : Integer.MAX_VALUE;
+        return async.defer("patient.notes.page", noteStore.page(id, cursor, skipped, limit));
     }
 
     @RequestMapping(value="/doctors", method= RequestMethod.GET)
-    public Object getDoctors() {
-        String statement = "SELECT META().id, `" + bucket().name() + "`.* FROM `" + bucket().name() + "` WHERE type = 'doctor'";
-        N1qlQueryResult result = bucket().query(N1qlQuery.simple(statement));
-        return extractResultOrThrow(result);
-        // The RxJava Approach
-        /*return bucket().async().query(N1qlQuery.simple(statement))
-            .flatMap(result -> result.errors().switchIfEmpty(result.rows().map(AsyncN1qlQueryRow::value)))
-            .map(result -> result.toMap())
-            .toList()
-            .timeout(10, TimeUnit.SECONDS)
-            .toBlocking()
-            .single();*/
+    public DeferredResult<Object> getDoctors(@RequestParam(value = "after", required = false) String after, @RequestParam(value = "limit", required = false) Integer limit) {
+        if(after != null || limit != null) {
+            return page("doctors", after, limit);
+        }
+        return async.defer("doctors", coalescer.coalesce("doctors", "", () -> statements.query("doctors")
+            .flatMap(this::extractResultOrThrow)));
+    }
+
+    @RequestMapping(value="/doctors", method= RequestMethod.GET, params="stream=true")
+    public ResponseEntity<ResponseBodyEmitter> streamDoctors() {
+        return async.stream("doctors", statements.query("doctors"));
     }
 
     @RequestMapping(value="/doctor/{doctorid}", method= RequestMethod.GET)
-    public Object getDoctorById(@PathVariable("doctorid") String id) {
-        return bucket().get(id).content().toMap();
-        // The RxJava Approach
-        /*return bucket().async().get(id)
-            .map(result -> result.content().toMap())
-            .timeout(10, TimeUnit.SECONDS)
-            .toBlocking()
-            .single();*/
+    public DeferredResult<Object> getDoctorById(@PathVariable("doctorid") String id, @RequestParam(value = "exclude", required = false) String exclude,
+                                                @RequestParam(value = "fields", required = false) String fields) {
+        if(fields != null) {
+            return getFields("doctor", id, fields, null);
+        }
+        return getById("doctor", id, RawJson.fields(exclude));
+    }
+
+    @RequestMapping(value="/doctor/stats/{doctorid}", method= RequestMethod.GET)
+    public DeferredResult<Object> getDoctorStats(@PathVariable("doctorid") String id) {
+        return async.defer("doctor.stats", doctorStats.get(id));
     }
 
     @RequestMapping(value="/doctor/patients/{doctorid}", method= RequestMethod.GET)
-    public Object getPatientsByDoctorId(@PathVariable("doctorid") String id, @RequestParam(value = "serviced", required = false, defaultValue = "false") boolean serviced) {
-        String statement = "SELECT patients.information, patients.timestamp, patients.type, META(patients).id FROM `" + bucket().name() + "` AS doctors JOIN `" + bucket().name() + "` AS patients ON KEYS doctors.patients WHERE doctors.type = 'doctor' AND META(doctors).id = $id";
+    public DeferredResult<Object> getPatientsByDoctorId(@PathVariable("doctorid") String id, @RequestParam(value = "serviced", required = false, defaultValue = "false") boolean serviced, @RequestParam(value = "offset", required = false) Integer offset, @RequestParam(value = "limit", required = false) Integer limit) {
         if(serviced == true) {
-            statement = "SELECT patients.information, patients.timestamp, patients.type, META(patients).id FROM `" + bucket().name() + "` AS patients WHERE patients.type = 'patient' AND ANY note IN patients.notes SATISFIES note.doctor = $id END";
+            JsonObject parameters = JsonObject.create().put("id", id);
+            return async.defer("doctor.patients", coalescer.coalesce("doctor.patients", id + "|serviced", () -> statements.query(noteStore.isBucketed() ? "doctor.patients.serviced.bucketed" : "doctor.patients.serviced", parameters)
+                .flatMap(this::extractResultOrThrow)));
         }
-        JsonObject parameters = JsonObject.create().put("id", id);
-        ParameterizedN1qlQuery query = ParameterizedN1qlQuery.parameterized(statement, parameters);
-        N1qlQueryResult result = bucket().query(query);
-        return extractResultOrThrow(result);
-        // The RxJava Approach
-        /*return bucket().async().query(query)
-            .flatMap(result -> result.errors().switchIfEmpty(result.rows().map(AsyncN1qlQueryRow::value)))
-            .map(result -> result.toMap())
-            .toList()
-            .timeout(10, TimeUnit.SECONDS)
-            .toBlocking()
-            .single();*/
+        if(offset == null && limit == null) {
+            return async.defer("doctor.patients", coalescer.coalesce("doctor.patients", id, () -> doctorPatients.fetchAll(id)));
+        }
+        int skip = offset != null ? offset : 0;
+        int size = limit != null ? limit : Integer.MAX_VALUE;
+        if(skip < 0 || size < 1) {
+            return async.done(new ResponseEntity<String>(JsonObject.create().put("message", "A non-negative `offset` and a positive `limit` are required").toString(), HttpStatus.BAD_REQUEST));
+        }
+        return async.defer("doctor.patients", coalescer.coalesce("doctor.patients", id + "|" + skip + "|" + size, () -> doctorPatients.fetch(id, skip, size)));
     }
 
     @RequestMapping(value="/doctor/appointments/{doctorid}", method= RequestMethod.GET)
-    public Object getAppointmentsByDoctorId(@PathVariable("doctorid") String id) {
-        String statement = "SELECT `" + bucket().name() + "`.* FROM `" + bucket().name() + "` WHERE type = 'appointment' AND doctor = $id";
+    public DeferredResult<Object> getAppointmentsByDoctorId(@PathVariable("doctorid") String id, @RequestParam(value = "from", required = false) Long from, @RequestParam(value = "to", required = false) Long to) {
+        if(from != null || to != null) {
+            if(from == null || to == null || to <= from) {
+                return async.done(new ResponseEntity<String>(JsonObject.create().put("message", "Unix times `from` and `to` with `from` before `to` are required").toString(), HttpStatus.BAD_REQUEST));
+            } else if(to - from > TimeUnit.DAYS.toSeconds(calendar.maxDays())) {
+                return async.done(new ResponseEntity<String>(JsonObject.create().put("message", "A range of at most " + calendar.maxDays() + " days is allowed").toString(), HttpStatus.BAD_REQUEST));
+            }
+            return async.defer("doctor.appointments.range", calendar.range(id, from, to));
+        }
+        if(appointmentIndex.ready()) {
+            return async.defer("doctor.appointments", coalescer.coalesce("doctor.appointments", id, () -> getAll(appointmentIndex.byDoctor(id))));
+        }
         JsonObject parameters = JsonObject.create().put("id", id);
-        ParameterizedN1qlQuery query = ParameterizedN1qlQuery.parameterized(statement, parameters);
-        N1qlQueryResult result = bucket().query(query);
-        return extractResultOrThrow(result);
-        // The RxJava Approach
-        /*return bucket().async().query(query)
-            .flatMap(result -> result.errors().switchIfEmpty(result.rows().map(AsyncN1qlQueryRow::value)))
-            .map(result -> result.toMap())
-            .toList()
-            .timeout(10, TimeUnit.SECONDS)
-            .toBlocking()
-            .single();*/
+        return async.defer("doctor.appointments", coalescer.coalesce("doctor.appointments", id, () -> statements.query("appointments.doctor", parameters)
+            .flatMap(this::extractResultOrThrow)));
     }
 
     @RequestMapping(value="/doctor", method=RequestMethod.POST)
-    public Object createDoctor(@RequestBody String payload) {
+    public DeferredResult<Object> createDoctor(@RequestBody String payload) {
         JsonObject jsonData = JsonObject.fromJson(payload);
+        String invalid = Records.validate("doctor", jsonData);
+        if(invalid != null) {
+            return async.done(new ResponseEntity<String>(JsonObject.create().put("message", invalid).toString(), HttpStatus.BAD_REQUEST));
+        }
         jsonData.put("type", "doctor");
         jsonData.put("timestamp", System.currentTimeMillis() / 1000L);
-        if(jsonData.getObject("information") == null) {
-            return new ResponseEntity<String>(JsonObject.create().put("message", "An `information` object is required").toString(), HttpStatus.BAD_REQUEST);
-        } else if(jsonData.getString("department") == null || jsonData.getString("department") == "") {
-            return new ResponseEntity<String>(JsonObject.create().put("message", "A `department` string is required").toString(), HttpStatus.BAD_REQUEST);
-        }
         JsonDocument document = JsonDocument.create(UUID.randomUUID().toString(), jsonData);
-        try {
-            bucket().insert(document);
-            return new ResponseEntity<String>(payload, HttpStatus.OK);
-        } catch (Exception e) {
-            throw new RuntimeException("Error: " + e.getMessage());
-        }
-        // The RxJava Approach
-        /*return bucket().async().insert(document)
-            .map(result -> payload)
-            .timeout(10, TimeUnit.SECONDS)
-            .toBlocking()
-            .single();*/
+        return async.defer("doctor.create", metrics.timed("kv", "insert", bucket().async().insert(document))
+            .map(result -> new ResponseEntity<String>(payload, HttpStatus.OK))
+            .onErrorResumeNext(e -> Observable.error(new RuntimeException("Error: " + e.getMessage()))));
     }
 
     @RequestMapping(value="/doctor/patient", method=RequestMethod.PUT)
-    public Object addPatientForDoctor(@RequestBody String payload) {
+    public DeferredResult<Object> addPatientForDoctor(@RequestBody String payload) {
         JsonObject jsonData = JsonObject.fromJson(payload);
         if(jsonData.getString("doctor") == null || jsonData.getString("doctor") == "") {
-            return new ResponseEntity<String>(JsonObject.create().put("message", "A `doctor` string is required").toString(), HttpStatus.BAD_REQUEST);
+            return async.done(new ResponseEntity<String>(JsonObject.create().put("message", "A `doctor` string is required").toString(), HttpStatus.BAD_REQUEST));
         } else if(jsonData.getString("patient") == null || jsonData.getString("patient") == "") {
-            return new ResponseEntity<String>(JsonObject.create().put("message", "A `patient` string is required").toString(), HttpStatus.BAD_REQUEST);
+            return async.done(new ResponseEntity<String>(JsonObject.create().put("message", "A `patient` string is required").toString(), HttpStatus.BAD_REQUEST));
         }
         SubdocOptionsBuilder builder = new SubdocOptionsBuilder();
         builder.createParents(true);
-        bucket().mutateIn(jsonData.getString("doctor")).arrayAddUnique("patients", jsonData.getString("patient"), builder).execute();
-        return new ResponseEntity<String>(payload, HttpStatus.OK);
+        return async.defer("doctor.patient", metrics.timed("kv", "mutateIn", bucket().async().mutateIn(jsonData.getString("doctor")).arrayAddUnique("patients", jsonData.getString("patient"), builder).execute())
+            .doOnTerminate(() -> documentCache.invalidate(jsonData.getString("doctor")))
+            .flatMap(result -> doctorStats.patient(jsonData.getString("doctor")).map(counted -> result))
+            .map(result -> new ResponseEntity<String>(payload, HttpStatus.OK)));
     }
 
     @RequestMapping(value="/appointments", method= RequestMethod.GET)
-    public Object getAppointments() {
-        String statement = "SELECT META().id, `" + bucket().name() + "`.* FROM `" + bucket().name() + "` WHERE type = 'appointment'";
-        N1qlQueryResult result = bucket().query(N1qlQuery.simple(statement));
-        return extractResultOrThrow(result);
-        // The RxJava Approach
-        /*return bucket().async().query(N1qlQuery.simple(statement))
-            .flatMap(result -> result.errors().switchIfEmpty(result.rows().map(AsyncN1qlQueryRow::value)))
-            .map(result -> result.toMap())
-            .toList()
-            .timeout(10, TimeUnit.SECONDS)
-            .toBlocking()
-            .single();*/
+    public DeferredResult<Object> getAppointments(@RequestParam(value = "after", required = false) String after, @RequestParam(value = "limit", required = false) Integer limit) {
+        if(after != null || limit != null) {
+            return page("appointments", after, limit);
+        }
+        return async.defer("appointments", coalescer.coalesce("appointments", "", () -> statements.query("appointments")
+            .flatMap(this::extractResultOrThrow)));
+    }
+
+    @RequestMapping(value="/appointments", method= RequestMethod.GET, params="stream=true")
+    public ResponseEntity<ResponseBodyEmitter> streamAppointments() {
+        return async.stream("appointments", statements.query("appointments"));
     }
 
     @RequestMapping(value="/appointment", method=RequestMethod.POST)
-    public Object createAppointment(@RequestBody String payload) {
+    public DeferredResult<Object> createAppointment(@RequestBody String payload) {
         JsonObject jsonData = JsonObject.fromJson(payload);
-        if(jsonData.getString("doctor") == null || jsonData.getString("doctor") == "") {
-            return new ResponseEntity<String>(JsonObject.create().put("message", "A `doctor` string is required").toString(), HttpStatus.BAD_REQUEST);
-        } else if(jsonData.getString("patient") == null || jsonData.getString("patient") == "") {
-            return new ResponseEntity<String>(JsonObject.create().put("message", "A `patient` string is required").toString(), HttpStatus.BAD_REQUEST);
-        } else if(jsonData.getLong("appointment") == null) {
-            return new ResponseEntity<String>(JsonObject.create().put("message", "A `appointment` unix time is required").toString(), HttpStatus.BAD_REQUEST);
+        String invalid = Records.validate("appointment", jsonData);
+        if(invalid != null) {
+            return async.done(new ResponseEntity<String>(JsonObject.create().put("message", invalid).toString(), HttpStatus.BAD_REQUEST));
+        }
+        invalid = reservations.validate(jsonData);
+        if(invalid != null) {
+            return async.done(new ResponseEntity<String>(JsonObject.create().put("message", invalid).toString(), HttpStatus.BAD_REQUEST));
         }
         jsonData.put("type", "appointment");
         jsonData.put("timestamp", System.currentTimeMillis() / 1000L);
         JsonDocument document = JsonDocument.create(UUID.randomUUID().toString(), jsonData);
-        try {
-            bucket().insert(document);
-            return new ResponseEntity<String>(payload, HttpStatus.OK);
-        } catch (Exception e) {
-            throw new RuntimeException("Error: " + e.getMessage());
-        }
-        // The RxJava Approach
-        /*return bucket().async().insert(document)
-            .map(result -> payload)
-            .timeout(10, TimeUnit.SECONDS)
-            .toBlocking()
-            .single();*/
+        return async.defer("appointment.create", reservations.reserve(document.id(), jsonData)
+            .flatMap(slots -> metrics.timed("kv", "insert", bucket().async().insert(document))
+                .onErrorResumeNext(e -> release(document.id(), jsonData)
+                    .flatMap(released -> Observable.<JsonDocument>error(e))))
+            .flatMap(result -> calendar.add(result.id(), jsonData).map(appointment -> result)
+                // undo the booking so a retry of the request does not conflict with it
+                .onErrorResumeNext(e -> calendar.remove(result.id(), jsonData.getString("doctor"), jsonData.getLong("appointment"))
+                    .onErrorReturn(failed -> false)
+                    .concatWith(metrics.timed("kv", "remove", bucket().async().remove(result.id())).map(removed -> true).onErrorReturn(failed -> false))
+                    .concatWith(release(result.id(), jsonData).map(released -> true))
+                    .toList()
+                    .flatMap(undone -> Observable.<JsonDocument>error(e))))
+            .flatMap(result -> doctorStats.appointment(jsonData.getString("doctor"), jsonData.getLong("appointment"), 1).map(counted -> result))
+            .doOnNext(result -> mutations.publish(Mutation.upsert(result.id(), result.content())))
+            .map(result -> new ResponseEntity<String>(payload, HttpStatus.OK))
+            .onErrorResumeNext(e -> e instanceof SlotReservations.Conflict
+                ? Observable.just(new ResponseEntity<String>(JsonObject.create()
+                    .put("message", "The doctor is already booked at that time")
+                    .put("slots", JsonArray.from(((SlotReservations.Conflict) e).slots())).toString(), HttpStatus.CONFLICT))
+                : Observable.error(new RuntimeException("Error: " + e.getMessage()))));
+    }
+
+    /**
+     * Frees the slots reserved for an appointment that could not be stored, ignoring failures
+     * since the original error is the one to report.
+     */
+    private Observable<Integer> release(String id, JsonObject appointment) {
+        return reservations.release(id, appointment.getString("doctor"), appointment.getLong("appointment"), SlotReservations.duration(appointment))
+            .onErrorReturn(e -> 0);
     }
 
     @RequestMapping(value="/appointment", method=RequestMethod.DELETE)
-    public Object deleteAppointment(@RequestBody String payload) {
+    public DeferredResult<Object> deleteAppointment(@RequestBody String payload, @RequestParam(value = "returning", required = false, defaultValue = "true") boolean returning) {
         JsonObject jsonData = JsonObject.fromJson(payload);
         if(jsonData.getString("id") == null || jsonData.getString("id") == "") {
-            return new ResponseEntity<String>(JsonObject.create().put("message", "An `id` string is required").toString(), HttpStatus.BAD_REQUEST);
+            return async.done(new ResponseEntity<String>(JsonObject.create().put("message", "An `id` string is required").toString(), HttpStatus.BAD_REQUEST));
         }
-        String statement = "DELETE FROM `" + bucket().name() + "` WHERE type = 'appointment' AND META().id = $id RETURNING *";
-        JsonObject parameters = JsonObject.create().put("id", jsonData.getString("id"));
-        ParameterizedN1qlQuery query = ParameterizedN1qlQuery.parameterized(statement, parameters);
-        N1qlQueryResult result = bucket().query(query);
-        return extractResultOrThrow(result);
-        // The RxJava Approach
-        /*return bucket().async().query(query)
-            .flatMap(result -> result.errors().switchIfEmpty(result.rows().map(AsyncN1qlQueryRow::value)))
-            .map(result -> result.toMap())
-            .toList()
-            .timeout(10, TimeUnit.SECONDS)
-            .toBlocking()
-            .single();*/
+        return async.defer("appointment.delete", appointmentDeletes.delete(jsonData.getString("id"), returning)
+            .map(appointment -> Collections.singletonMap(bucket, appointment.toMap()))
+            .toList());
     }
 
-    private static List<Map<String, Object>> extractResultOrThrow(N1qlQueryResult result) {
-        if (!result.finalSuccess()) {
-            throw new DataRetrievalFailureException("Query Error: " + result.errors());
+    @RequestMapping(value="/appointments/delete", method=RequestMethod.POST)
+    public DeferredResult<Object> deleteAppointments(@RequestBody String payload) {
+        JsonObject jsonData = JsonObject.fromJson(payload);
+        if(jsonData.getArray("ids") == null) {
+            return async.done(new ResponseEntity<String>(JsonObject.create().put("message", "An `ids` array is required").toString(), HttpStatus.BAD_REQUEST));
         }
-        List<Map<String, Object>> content = new ArrayList<Map<String, Object>>();
-        for (N1qlQueryRow row : result) {
-            content.add(row.value().toMap());
+        List<String> ids = new ArrayList<String>();
+        for(Object id : jsonData.getArray("ids")) {
+            if(!(id instanceof String)) {
+                return async.done(new ResponseEntity<String>(JsonObject.create().put("message", "Every `ids` entry must be a string").toString(), HttpStatus.BAD_REQUEST));
+            }
+            ids.add((String) id);
         }
-        return content;
+        return async.defer("appointments.delete", appointmentDeletes.deleteAll(ids));
+    }
+
+    @RequestMapping(value="/import", method=RequestMethod.POST)
+    public void importRecords(@RequestParam(value = "type", required = false) String type, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType("application/x-ndjson");
+        Writer writer = new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8);
+        JsonObject summary = importer.run(request.getReader(), type, batch -> {
+            try {
+                for(JsonObject result : batch) {
+                    writer.write(result.toString());
+                    writer.write('\n');
+                }
+                writer.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        writer.write(summary.toString());
+        writer.write('\n');
+        writer.flush();
+    }
+
+    @RequestMapping(value="/cache", method= RequestMethod.GET)
+    public Object getCacheStats() {
+        return documentCache.stats();
+    }
+
+    @RequestMapping(value="/coalescing", method= RequestMethod.GET)
+    public Object getCoalescingStats() {
+        return coalescer.stats();
+    }
+
+    @RequestMapping(value="/statements", method= RequestMethod.GET)
+    public Object getStatementStats() {
+        return statements.stats();
+    }
+
+    @RequestMapping(value="/metrics", method= RequestMethod.GET, produces="text/plain; version=0.0.4; charset=utf-8")
+    public String getMetrics() {
+        return metrics.scrape();
+    }
+
+    private DeferredResult<Object> getById(String endpoint, String id, Set<String> exclude) {
+        Observable<Object> document = passthrough
+            ? documentCache.getRaw(id).map(json -> RawJson.response(json, exclude))
+            : documentCache.get(id).map(content -> RawJson.strip(content, exclude));
+        return async.defer(endpoint, document
+            .onErrorResumeNext(e -> e instanceof DocumentDoesNotExistException ? Observable.empty() : Observable.error(e))
+            .switchIfEmpty(Observable.fromCallable(() -> Projection.notFound(id))));
+    }
+
+    /**
+     * Only the requested `fields`, read with one lookupIn, and the last `notes.last` notes;
+     * 404 if there is no document with that id.
+     */
+    private DeferredResult<Object> getFields(String endpoint, String id, String fields, Integer lastNotes) {
+        List<String> paths;
+        try {
+            paths = Projection.paths(fields);
+        } catch (IllegalArgumentException e) {
+            return async.done(new ResponseEntity<String>(JsonObject.create().put("message", e.getMessage()).toString(), HttpStatus.BAD_REQUEST));
+        }
+        if(paths.size() > Projection.MAX_PATHS) {
+            return async.done(new ResponseEntity<String>(JsonObject.create().put("message", "At most " + Projection.MAX_PATHS + " `fields` can be requested").toString(), HttpStatus.BAD_REQUEST));
+        } else if(lastNotes != null && (lastNotes < 1 || lastNotes > MAX_LAST_NOTES)) {
+            return async.done(new ResponseEntity<String>(JsonObject.create().put("message", "`notes.last` must be between 1 and " + MAX_LAST_NOTES).toString(), HttpStatus.BAD_REQUEST));
+        }
+        Observable<List<Object>> notes = lastNotes != null ? noteStore.last(id, lastNotes) : Observable.just(null);
+        return async.defer(endpoint, Projection.read(bucket(), metrics, id, paths, notes));
+    }
+
+    private DeferredResult<Object> page(String endpoint, String after, Integer limit) {
+        int size = limit != null ? limit : 100;
+        if(size < 1) {
+            return async.done(new ResponseEntity<String>(JsonObject.create().put("message", "A positive `limit` is required").toString(), HttpStatus.BAD_REQUEST));
+        }
+        String lastKey;
+        try {
+            lastKey = after != null ? ContinuationToken.decode(after) : "";
+        } catch (IllegalArgumentException e) {
+            return async.done(new ResponseEntity<String>(JsonObject.create().put("message", "The `after` token is invalid").toString(), HttpStatus.BAD_REQUEST));
+        }
+        JsonObject parameters = JsonObject.create().put("after", lastKey).put("limit", size);
+        return async.defer(endpoint, coalescer.coalesce(endpoint, lastKey + "|" + size, () -> statements.query(endpoint + ".page", parameters)
+            .flatMap(this::extractResultOrThrow)
+            .map(rows -> {
+                Map<String, Object> result = new LinkedHashMap<String, Object>();
+                result.put("results", rows);
+                result.put("next", rows.size() == size ? ContinuationToken.encode((String) rows.get(rows.size() - 1).get("id")) : null);
+                return result;
+            })));
+    }
+
+    private Observable<List<Map<String, Object>>> getAll(Collection<String> ids) {
+        return Observable.from(ids)
+            .flatMap(key -> metrics.timed("kv", "get", bucket().async().get(key)))
+            .map(result -> result.content().toMap())
+            .toList();
+    }
+
+    private Observable<List<Map<String, Object>>> extractResultOrThrow(AsyncN1qlQueryResult result) {
+        long[] converting = { 0 };
+        return result.rows()
+            .map(row -> {
+                long start = System.nanoTime();
+                Map<String, Object> value = row.value().toMap();
+                converting[0] += System.nanoTime() - start;
+                return value;
+            })
+            .toList()
+            .doOnNext(rows -> metrics.backend("json", "toMap", converting[0], true))
+            .flatMap(content -> result.finalSuccess().flatMap(success -> {
+                if (!success) {
+                    return result.errors().toList().flatMap(errors ->
+                        Observable.<List<Map<String, Object>>>error(new DataRetrievalFailureException("Query Error: " + errors)));
+                }
+                return Observable.just(content);
+            }));
     }
 
-}
\ No newline at end of file
+}
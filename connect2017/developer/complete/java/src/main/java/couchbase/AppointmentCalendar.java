@@ -0,0 +1,127 @@
+package couchbase;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.couchbase.client.java.error.subdoc.PathNotFoundException;
+import com.couchbase.client.java.subdoc.SubdocOptionsBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import rx.Observable;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+
+/**
+ * Per-doctor, per-day calendar documents keyed `calendar::<doctor>::<yyyyMMdd>` (UTC), each
+ * holding that day's appointments by id. Creating and deleting an appointment maintains the
+ * day it falls on, so reading a range of days is one key lookup per day instead of a query.
+ */
+@Component
+public class AppointmentCalendar {
+
+    private static final DateTimeFormatter DAY = DateTimeFormatter.ofPattern("yyyyMMdd").withZone(ZoneOffset.UTC);
+
+    private static final long SECONDS_PER_DAY = 86400L;
+
+    private final Bucket bucket;
+
+    private final Metrics metrics;
+
+    private final int maxDays;
+
+    @Autowired
+    public AppointmentCalendar(Bucket bucket, Metrics metrics, @Value("${calendar.max-days:92}") int maxDays) {
+        this.bucket = bucket;
+        this.metrics = metrics;
+        this.maxDays = maxDays;
+    }
+
+    public int maxDays() {
+        return maxDays;
+    }
+
+    public static String key(String doctorId, long appointment) {
+        return "calendar::" + doctorId + "::" + DAY.format(Instant.ofEpochSecond(appointment));
+    }
+
+    /**
+     * The calendar keys covering [from, to), in day order.
+     */
+    static List<String> keys(String doctorId, long from, long to) {
+        List<String> keys = new ArrayList<String>();
+        for(long day = Math.floorDiv(from, SECONDS_PER_DAY) * SECONDS_PER_DAY; day < to; day += SECONDS_PER_DAY) {
+            keys.add(key(doctorId, day));
+        }
+        return keys;
+    }
+
+    public Observable<JsonObject> add(String appointmentId, JsonObject appointment) {
+        String doctor = appointment.getString("doctor");
+        long time = appointment.getLong("appointment");
+        SubdocOptionsBuilder builder = new SubdocOptionsBuilder();
+        builder.createParents(true);
+        return metrics.timed("kv", "mutateIn", bucket.async().mutateIn(key(doctor, time))
+            .upsertDocument(true)
+            .upsert("type", "calendar")
+            .upsert("doctor", doctor)
+            .upsert("day", DAY.format(Instant.ofEpochSecond(time)))
+            .upsert(path(appointmentId), JsonObject.create()
+                .put("patient", appointment.getString("patient"))
+                .put("appointment", time), builder)
+            .execute())
+            .map(result -> appointment);
+    }
+
+    public Observable<Boolean> remove(String appointmentId, String doctorId, long appointment) {
+        return metrics.timed("kv", "mutateIn", bucket.async().mutateIn(key(doctorId, appointment))
+            .remove(path(appointmentId))
+            .execute())
+            .map(result -> true)
+            .onErrorResumeNext(e -> e instanceof DocumentDoesNotExistException || e instanceof PathNotFoundException
+                ? Observable.just(false)
+                : Observable.<Boolean>error(e));
+    }
+
+    /**
+     * A doctor's appointments with from <= appointment < to, earliest first.
+     */
+    public Observable<List<Map<String, Object>>> range(String doctorId, long from, long to) {
+        List<String> keys = keys(doctorId, from, to);
+        return Observable.from(keys)
+            .concatMapEager(key -> metrics.timed("kv", "get", bucket.async().get(key)), keys.size() + 1)
+            .concatMap(day -> Observable.from(entries(doctorId, day)))
+            .filter(entry -> {
+                long time = ((Number) entry.get("appointment")).longValue();
+                return time >= from && time < to;
+            })
+            .toSortedList((a, b) -> Long.compare(((Number) a.get("appointment")).longValue(), ((Number) b.get("appointment")).longValue()));
+    }
+
+    private static List<Map<String, Object>> entries(String doctorId, JsonDocument day) {
+        List<Map<String, Object>> entries = new ArrayList<Map<String, Object>>();
+        JsonObject appointments = day.content().getObject("appointments");
+        if(appointments != null) {
+            for(String id : appointments.getNames()) {
+                Map<String, Object> entry = new LinkedHashMap<String, Object>();
+                entry.put("id", id);
+                entry.put("doctor", doctorId);
+                entry.putAll(appointments.getObject(id).toMap());
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * The subdocument path of an appointment's entry. The id is quoted in backticks, and a
+     * backtick in it is escaped by doubling it as the subdocument path syntax requires.
+     */
+    static String path(String appointmentId) {
+        return "appointments.`" + appointmentId.replace("`", "``") + "`";
+    }
+
+}
@@ -0,0 +1,139 @@
+package couchbase;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import rx.Observable;
+import java.util.*;
+
+/**
+ * Deletes appointments by key. The appointment is read first, so only documents of type
+ * `appointment` are removed and its calendar day is known, and then removed with the CAS of
+ * that read; if it changed in between the whole sequence is retried. Only the fields the
+ * calendar needs are read unless the caller wants the deleted document back.
+ */
+@Component
+public class AppointmentDeletes {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AppointmentDeletes.class);
+
+    private static final int CAS_RETRIES = 3;
+
+    private final Bucket bucket;
+
+    private final Metrics metrics;
+
+    private final AppointmentCalendar calendar;
+
+    private final MutationFeed mutations;
+
+    private final SlotReservations reservations;
+
+    private final DoctorStats stats;
+
+    private final int concurrency;
+
+    @Autowired
+    public AppointmentDeletes(Bucket bucket, Metrics metrics, AppointmentCalendar calendar, MutationFeed mutations,
+                              SlotReservations reservations, DoctorStats stats, @Value("${appointments.delete.concurrency:32}") int concurrency) {
+        this.bucket = bucket;
+        this.metrics = metrics;
+        this.calendar = calendar;
+        this.mutations = mutations;
+        this.reservations = reservations;
+        this.stats = stats;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Emits the deleted appointment (only `id`, `doctor`, `appointment` and `duration` unless
+     * `returning`), or nothing if there is no appointment with that id. Its calendar entry and
+     * reserved slots are removed with it and it is uncounted from the doctor's stats; these
+     * are logged when they fail but do not fail the delete, since the appointment is gone.
+     */
+    public Observable<JsonObject> delete(String id, boolean returning) {
+        return Observable.defer(() -> read(id, returning))
+            .flatMap(appointment -> metrics.timed("kv", "remove", bucket.async().remove(JsonDocument.create(id, null, appointment.cas())))
+                .map(removed -> appointment.content()))
+            .retry((attempt, e) -> attempt <= CAS_RETRIES && e instanceof CASMismatchException)
+            .onErrorResumeNext(e -> e instanceof DocumentDoesNotExistException ? Observable.<JsonObject>empty() : Observable.<JsonObject>error(e))
+            .doOnNext(appointment -> mutations.publish(Mutation.delete(id)))
+            .flatMap(appointment -> {
+                String doctor = appointment.getString("doctor");
+                Long time = appointment.getLong("appointment");
+                if(doctor == null || time == null) {
+                    return Observable.just(appointment);
+                }
+                return Observable.zip(
+                    cleanup(id, "calendar entry", calendar.remove(id, doctor, time)),
+                    cleanup(id, "slots", reservations.release(id, doctor, time, SlotReservations.duration(appointment))),
+                    cleanup(id, "stats", stats.appointment(doctor, time, -1)),
+                    (unscheduled, released, counted) -> appointment);
+            });
+    }
+
+    /**
+     * Deletes every id with at most `appointments.delete.concurrency` removals in flight and
+     * reports which were deleted, which did not exist and which failed.
+     */
+    public Observable<Map<String, Object>> deleteAll(Collection<String> ids) {
+        return Observable.from(new LinkedHashSet<String>(ids))
+            .flatMap(id -> delete(id, false)
+                .map(appointment -> result(id, "deleted", null))
+                .defaultIfEmpty(result(id, "missing", null))
+                .onErrorReturn(e -> result(id, "errors", e.toString())), concurrency)
+            .toList()
+            .map(results -> {
+                Map<String, Object> response = new LinkedHashMap<String, Object>();
+                response.put("deleted", new ArrayList<Object>());
+                response.put("missing", new ArrayList<Object>());
+                response.put("errors", new ArrayList<Object>());
+                for(Map.Entry<String, Object> result : results) {
+                    @SuppressWarnings("unchecked")
+                    List<Object> group = (List<Object>) response.get(result.getKey());
+                    group.add(result.getValue());
+                }
+                return response;
+            });
+    }
+
+    private static Observable<Object> cleanup(String id, String what, Observable<?> step) {
+        return step.<Object>map(done -> done)
+            .onErrorReturn(e -> {
+                LOGGER.warn("Could not remove the " + what + " of deleted appointment " + id, e);
+                return false;
+            });
+    }
+
+    private Observable<JsonDocument> read(String id, boolean returning) {
+        if(returning) {
+            return metrics.timed("kv", "get", bucket.async().get(id))
+                .filter(document -> "appointment".equals(document.content().getString("type")))
+                .map(document -> JsonDocument.create(id, document.content().put("id", id), document.cas()));
+        }
+        return metrics.timed("kv", "lookupIn", bucket.async().lookupIn(id).get("type", "doctor", "appointment", "duration").execute())
+            .filter(fragment -> fragment.exists("type") && "appointment".equals(fragment.content("type")))
+            .map(fragment -> {
+                JsonObject appointment = JsonObject.create().put("id", id);
+                for(String path : Arrays.asList("doctor", "appointment", "duration")) {
+                    if(fragment.exists(path)) {
+                        appointment.put(path, fragment.content(path));
+                    }
+                }
+                return JsonDocument.create(id, appointment, fragment.cas());
+            });
+    }
+
+    private static Map.Entry<String, Object> result(String id, String outcome, String message) {
+        Object value = message == null ? id : JsonObject.create().put("id", id).put("message", message).toMap();
+        return new AbstractMap.SimpleImmutableEntry<String, Object>(outcome, value);
+    }
+
+}
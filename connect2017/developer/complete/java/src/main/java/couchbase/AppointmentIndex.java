@@ -0,0 +1,138 @@
+package couchbase;
+
+import com.couchbase.client.java.document.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import rx.Observable;
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory doctor and patient to appointment id multimaps. The index subscribes to the
+ * mutation feed first and then loads the existing appointments, so nothing written during
+ * the load is lost. Until the load completes {@link #ready()} is false and callers should
+ * fall back to N1QL.
+ */
+@Component
+public class AppointmentIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AppointmentIndex.class);
+
+    private final Map<String, Set<String>> byDoctor = new ConcurrentHashMap<String, Set<String>>();
+
+    private final Map<String, Set<String>> byPatient = new ConcurrentHashMap<String, Set<String>>();
+
+    private final Map<String, JsonObject> appointments = new ConcurrentHashMap<String, JsonObject>();
+
+    private final Set<String> deletedDuringLoad = ConcurrentHashMap.newKeySet();
+
+    private final StatementRegistry statements;
+
+    @Value("${appointments.index.enabled:true}")
+    private boolean enabled;
+
+    private volatile boolean ready;
+
+    @Autowired
+    public AppointmentIndex(MutationFeed feed, StatementRegistry statements) {
+        this.statements = statements;
+        feed.mutations().subscribe(this::apply);
+    }
+
+    AppointmentIndex(MutationFeed feed) {
+        this(feed, null);
+    }
+
+    @PostConstruct
+    public void start() {
+        if(enabled) {
+            load(statements.query("appointments.keys")
+                .flatMap(result -> result.rows())
+                .map(row -> row.value()));
+        }
+    }
+
+    void load(Observable<JsonObject> existing) {
+        existing.subscribe(
+            row -> {
+                if(!deletedDuringLoad.contains(row.getString("id"))) {
+                    add(row.getString("id"), row);
+                }
+            },
+            e -> LOGGER.warn("Could not build the appointment index, falling back to N1QL", e),
+            () -> {
+                ready = true;
+                deletedDuringLoad.clear();
+                LOGGER.info("Appointment index ready with {} appointments", appointments.size());
+            });
+    }
+
+    public boolean ready() {
+        return ready;
+    }
+
+    public Set<String> byDoctor(String doctor) {
+        return snapshot(byDoctor.get(doctor));
+    }
+
+    public Set<String> byPatient(String patient) {
+        return snapshot(byPatient.get(patient));
+    }
+
+    private void apply(Mutation mutation) {
+        JsonObject content = mutation.getContent();
+        if(mutation.getType() == Mutation.Type.DELETE) {
+            if(!ready) {
+                deletedDuringLoad.add(mutation.getId());
+            }
+            remove(mutation.getId());
+        } else if(content != null && "appointment".equals(content.getString("type"))) {
+            remove(mutation.getId());
+            add(mutation.getId(), content);
+        }
+    }
+
+    private void add(String id, JsonObject appointment) {
+        appointments.put(id, JsonObject.create()
+            .put("doctor", appointment.getString("doctor"))
+            .put("patient", appointment.getString("patient")));
+        link(byDoctor, appointment.getString("doctor"), id);
+        link(byPatient, appointment.getString("patient"), id);
+    }
+
+    private void remove(String id) {
+        JsonObject previous = appointments.remove(id);
+        if(previous != null) {
+            unlink(byDoctor, previous.getString("doctor"), id);
+            unlink(byPatient, previous.getString("patient"), id);
+        }
+    }
+
+    private static void link(Map<String, Set<String>> index, String key, String id) {
+        if(key != null) {
+            index.compute(key, (k, ids) -> {
+                Set<String> linked = ids == null ? ConcurrentHashMap.<String>newKeySet() : ids;
+                linked.add(id);
+                return linked;
+            });
+        }
+    }
+
+    private static void unlink(Map<String, Set<String>> index, String key, String id) {
+        if(key != null) {
+            index.computeIfPresent(key, (k, ids) -> {
+                ids.remove(id);
+                return ids.isEmpty() ? null : ids;
+            });
+        }
+    }
+
+    private static Set<String> snapshot(Set<String> ids) {
+        return ids == null ? Collections.<String>emptySet() : new HashSet<String>(ids);
+    }
+
+}
@@ -0,0 +1,264 @@
+package couchbase;
+
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.query.AsyncN1qlQueryResult;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.http.*;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import rx.Observable;
+import rx.Subscription;
+import rx.functions.Action0;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Turns the RxJava pipelines built by the controllers into a DeferredResult, either by
+ * subscribing without blocking (async mode) or by blocking the calling servlet thread.
+ * Every request is bounded by a per-endpoint timeout, the adaptive limit of its endpoint
+ * group in {@link LoadShedder} and a global cap on in-flight requests, and its latency is
+ * recorded per endpoint in {@link Metrics}. Requests over either limit are rejected at once
+ * with 503 and a Retry-After header.
+ *
+ * N1QL results can also be streamed: rows are copied to the response as they arrive, wrapped
+ * in the same envelope the query service uses, so an error after the first row still reaches
+ * the client as the trailing `status` and `errors` fields. Other results can be streamed the
+ * same way as raw JSON items under a field of their choice.
+ */
+@Component
+public class AsyncSupport {
+
+    @Value("${async.enabled:true}")
+    private boolean enabled;
+
+    @Value("${async.timeout.default:10000}")
+    private long defaultTimeout;
+
+    private final Environment environment;
+
+    private final Metrics metrics;
+
+    private final LoadShedder shedder;
+
+    private final Semaphore inFlight;
+
+    @Autowired
+    public AsyncSupport(Environment environment, Metrics metrics, LoadShedder shedder, @Value("${async.max-in-flight:512}") int maxInFlight) {
+        this.environment = environment;
+        this.metrics = metrics;
+        this.shedder = shedder;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    public DeferredResult<Object> done(Object value) {
+        DeferredResult<Object> deferred = new DeferredResult<Object>();
+        deferred.setResult(value);
+        return deferred;
+    }
+
+    public <T> DeferredResult<Object> defer(String endpoint, Observable<T> source) {
+        long timeout = timeout(endpoint);
+        DeferredResult<Object> deferred = new DeferredResult<Object>(timeout + 1000L, timedOut(endpoint));
+        ResponseEntity<String> rejected = admit(endpoint);
+        if(rejected != null) {
+            deferred.setResult(rejected);
+            return deferred;
+        }
+        long start = System.nanoTime();
+        Action0 release = release(endpoint, start);
+        Observable<T> timed = source
+            .single()
+            .timeout(timeout, TimeUnit.MILLISECONDS)
+            .doOnCompleted(() -> metrics.request(endpoint, System.nanoTime() - start, true))
+            .doOnError(e -> metrics.request(endpoint, System.nanoTime() - start, false))
+            .doAfterTerminate(release)
+            .doOnUnsubscribe(release);
+        if(!enabled) {
+            try {
+                deferred.setResult(timed.toBlocking().single());
+            } catch (Exception e) {
+                fail(endpoint, deferred, e);
+            }
+            return deferred;
+        }
+        Subscription subscription = timed.subscribe(deferred::setResult, e -> fail(endpoint, deferred, e));
+        deferred.onTimeout(subscription::unsubscribe);
+        return deferred;
+    }
+
+    public ResponseEntity<ResponseBodyEmitter> stream(String endpoint, Observable<AsyncN1qlQueryResult> source) {
+        ResponseEntity<String> rejected = admit(endpoint);
+        if(rejected != null) {
+            return stream(rejected);
+        }
+        long timeout = timeout(endpoint);
+        ResponseBodyEmitter emitter = new ResponseBodyEmitter(timeout + 1000L);
+        write(emitter, "{\"results\":[".getBytes(StandardCharsets.UTF_8));
+        long start = System.nanoTime();
+        AtomicBoolean first = new AtomicBoolean(true);
+        Action0 release = release(endpoint, start);
+        Subscription subscription = source
+            .flatMap(result -> result.rows()
+                .map(row -> {
+                    write(emitter, first.getAndSet(false) ? row.byteValue() : concat(',', row.byteValue()));
+                    return true;
+                })
+                .ignoreElements()
+                .concatWith(result.finalSuccess())
+                .last()
+                .flatMap(success -> success ? Observable.just(JsonArray.empty()) : result.errors().toList().map(JsonArray::from)))
+            .timeout(timeout, TimeUnit.MILLISECONDS)
+            .doOnNext(errors -> metrics.request(endpoint, System.nanoTime() - start, errors.isEmpty()))
+            .doOnError(e -> metrics.request(endpoint, System.nanoTime() - start, false))
+            .doAfterTerminate(release)
+            .doOnUnsubscribe(release)
+            .subscribe(
+                errors -> finish(emitter, errors.isEmpty() ? "success" : "errors", errors),
+                e -> finish(emitter, "fatal", JsonArray.from(JsonObject.create().put("msg", e.toString())))
+            );
+        emitter.onTimeout(subscription::unsubscribe);
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON_UTF8).body(emitter);
+    }
+
+    /**
+     * Streams `{"<field>":[item,...],<trailer fields>,"status":"success"}`, copying each item
+     * to the response as it is emitted. The fields of `trailer` are read once the items are
+     * done, so the source can fill it in as it goes.
+     */
+    public ResponseEntity<ResponseBodyEmitter> stream(String endpoint, String field, Observable<byte[]> items, JsonObject trailer) {
+        ResponseEntity<String> rejected = admit(endpoint);
+        if(rejected != null) {
+            return stream(rejected);
+        }
+        long timeout = timeout(endpoint);
+        ResponseBodyEmitter emitter = new ResponseBodyEmitter(timeout + 1000L);
+        write(emitter, ("{\"" + field + "\":[").getBytes(StandardCharsets.UTF_8));
+        long start = System.nanoTime();
+        AtomicBoolean first = new AtomicBoolean(true);
+        Action0 release = release(endpoint, start);
+        Subscription subscription = items
+            .map(item -> {
+                write(emitter, first.getAndSet(false) ? item : concat(',', item));
+                return true;
+            })
+            .ignoreElements()
+            .timeout(timeout, TimeUnit.MILLISECONDS)
+            .doOnCompleted(() -> metrics.request(endpoint, System.nanoTime() - start, true))
+            .doOnError(e -> metrics.request(endpoint, System.nanoTime() - start, false))
+            .doAfterTerminate(release)
+            .doOnUnsubscribe(release)
+            .subscribe(
+                written -> {},
+                e -> finish(emitter, "fatal", JsonArray.from(JsonObject.create().put("msg", e.toString()))),
+                () -> finish(emitter, trailer.put("status", "success"))
+            );
+        emitter.onTimeout(subscription::unsubscribe);
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON_UTF8).body(emitter);
+    }
+
+    /**
+     * A response that was decided before streaming started, such as a 400, as a stream.
+     */
+    public ResponseEntity<ResponseBodyEmitter> stream(ResponseEntity<String> response) {
+        ResponseBodyEmitter emitter = new ResponseBodyEmitter();
+        write(emitter, response.getBody().getBytes(StandardCharsets.UTF_8));
+        emitter.complete();
+        return ResponseEntity.status(response.getStatusCode()).headers(response.getHeaders()).contentType(MediaType.APPLICATION_JSON_UTF8).body(emitter);
+    }
+
+    /**
+     * Takes a permit from the endpoint group and the global cap, or returns the 503 to answer
+     * with if either is exhausted.
+     */
+    private ResponseEntity<String> admit(String endpoint) {
+        if(!shedder.tryAcquire(endpoint)) {
+            metrics.rejected(endpoint);
+            return unavailable("Too many concurrent requests to `" + endpoint + "`");
+        }
+        if(!inFlight.tryAcquire()) {
+            shedder.cancel(endpoint);
+            metrics.rejected(endpoint);
+            return unavailable("Too many requests in flight");
+        }
+        return null;
+    }
+
+    private Action0 release(String endpoint, long start) {
+        AtomicBoolean released = new AtomicBoolean(false);
+        return () -> {
+            if(released.compareAndSet(false, true)) {
+                inFlight.release();
+                shedder.release(endpoint, System.nanoTime() - start);
+            }
+        };
+    }
+
+    private ResponseEntity<String> unavailable(String message) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+            .header(HttpHeaders.RETRY_AFTER, Long.toString(shedder.retryAfter()))
+            .body(JsonObject.create().put("message", message).toString());
+    }
+
+    private static void finish(ResponseBodyEmitter emitter, String status, JsonArray errors) {
+        JsonObject trailer = JsonObject.create().put("status", status);
+        if(!errors.isEmpty()) {
+            trailer.put("errors", errors);
+        }
+        finish(emitter, trailer);
+    }
+
+    private static void finish(ResponseBodyEmitter emitter, JsonObject trailer) {
+        String tail = trailer.toString();
+        try {
+            emitter.send(("]," + tail.substring(1)).getBytes(StandardCharsets.UTF_8), MediaType.APPLICATION_JSON_UTF8);
+            emitter.complete();
+        } catch (IOException e) {
+            emitter.completeWithError(e);
+        }
+    }
+
+    private static void write(ResponseBodyEmitter emitter, byte[] chunk) {
+        try {
+            emitter.send(chunk, MediaType.APPLICATION_JSON_UTF8);
+        } catch (IOException e) {
+            throw new IllegalStateException("Client went away while streaming", e);
+        }
+    }
+
+    private static byte[] concat(char separator, byte[] value) {
+        byte[] chunk = new byte[value.length + 1];
+        chunk[0] = (byte) separator;
+        System.arraycopy(value, 0, chunk, 1, value.length);
+        return chunk;
+    }
+
+    private long timeout(String endpoint) {
+        return environment.getProperty("async.timeout." + endpoint, Long.class, defaultTimeout);
+    }
+
+    private void fail(String endpoint, DeferredResult<Object> deferred, Throwable e) {
+        Throwable cause = e instanceof RuntimeException && e.getCause() instanceof TimeoutException ? e.getCause() : e;
+        if(cause instanceof TimeoutException) {
+            deferred.setResult(timedOut(endpoint));
+        } else {
+            deferred.setErrorResult(cause);
+        }
+    }
+
+    private static ResponseEntity<String> timedOut(String endpoint) {
+        return error("Request to `" + endpoint + "` timed out", HttpStatus.GATEWAY_TIMEOUT);
+    }
+
+    static ResponseEntity<String> error(String message, HttpStatus status) {
+        return new ResponseEntity<String>(JsonObject.create().put("message", message).toString(), status);
+    }
+
+}
@@ -0,0 +1,112 @@
+package couchbase;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import rx.Observable;
+import rx.functions.Action1;
+import java.io.BufferedReader;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Imports newline-delimited JSON records. Every line is validated with the same rules as the
+ * single-record handlers and inserted through the async API, with at most
+ * `import.concurrency` inserts outstanding at a time. Per-line results are handed to the
+ * caller in batches of `import.batch-size`, or at least once a second.
+ *
+ * A line may carry its own `type` (otherwise the default type applies) and its own `id` to use
+ * as the document key (otherwise a random UUID is used). A `timestamp` in the line is kept.
+ */
+@Component
+public class BulkImporter {
+
+    private final Bucket bucket;
+
+    private final MutationFeed mutations;
+
+    private final Metrics metrics;
+
+    private final AppointmentCalendar calendar;
+
+    private final int concurrency;
+
+    private final int batchSize;
+
+    @Autowired
+    public BulkImporter(Bucket bucket, MutationFeed mutations, Metrics metrics, AppointmentCalendar calendar,
+                        @Value("${import.concurrency:128}") int concurrency,
+                        @Value("${import.batch-size:1000}") int batchSize) {
+        this.bucket = bucket;
+        this.mutations = mutations;
+        this.metrics = metrics;
+        this.calendar = calendar;
+        this.concurrency = concurrency;
+        this.batchSize = batchSize;
+    }
+
+    public JsonObject run(BufferedReader reader, String defaultType, Action1<List<JsonObject>> report) {
+        AtomicLong lines = new AtomicLong();
+        AtomicLong succeeded = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        Iterable<String> input = () -> reader.lines().iterator();
+        Observable.from(input)
+            .map(line -> JsonObject.create().put("line", lines.incrementAndGet()).put("record", line))
+            .filter(line -> !line.getString("record").trim().isEmpty())
+            .flatMap(line -> write(line.getLong("line"), line.getString("record"), defaultType), concurrency)
+            .doOnNext(result -> (result.getBoolean("success") ? succeeded : failed).incrementAndGet())
+            .buffer(1, TimeUnit.SECONDS, batchSize)
+            .filter(batch -> !batch.isEmpty())
+            .toBlocking()
+            .forEach(report);
+        return JsonObject.create()
+            .put("lines", lines.get())
+            .put("succeeded", succeeded.get())
+            .put("failed", failed.get());
+    }
+
+    private Observable<JsonObject> write(long line, String text, String defaultType) {
+        JsonObject record;
+        try {
+            record = JsonObject.fromJson(text);
+        } catch (Exception e) {
+            return Observable.just(failure(line, null, "Invalid JSON: " + e.getMessage()));
+        }
+        Object key = record.get("id");
+        if(key != null && (!(key instanceof String) || ((String) key).isEmpty())) {
+            return Observable.just(failure(line, null, "An `id` must be a non-empty string"));
+        }
+        String id = key != null ? (String) key : UUID.randomUUID().toString();
+        String type;
+        try {
+            Object kind = record.containsKey("type") ? record.get("type") : defaultType;
+            type = kind instanceof String ? (String) kind : null;
+            String invalid = Records.validate(type, record);
+            if(invalid != null) {
+                return Observable.just(failure(line, id, invalid));
+            }
+        } catch (RuntimeException e) {
+            return Observable.just(failure(line, id, "Invalid record: " + e.getMessage()));
+        }
+        record.removeKey("id");
+        record.put("type", type);
+        if(!record.containsKey("timestamp")) {
+            record.put("timestamp", System.currentTimeMillis() / 1000L);
+        }
+        return metrics.timed("kv", "insert", bucket.async().insert(JsonDocument.create(id, record)))
+            .flatMap(document -> "appointment".equals(type) ? calendar.add(id, record).map(appointment -> document) : Observable.just(document))
+            .doOnNext(document -> mutations.publish(Mutation.upsert(id, record)))
+            .map(document -> JsonObject.create().put("line", line).put("id", id).put("success", true))
+            .onErrorReturn(e -> failure(line, id, e.toString()));
+    }
+
+    private static JsonObject failure(long line, String id, String message) {
+        return JsonObject.create().put("line", line).put("id", id).put("success", false).put("message", message);
+    }
+
+}
@@ -0,0 +1,44 @@
+package couchbase;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.stereotype.Component;
+
+/**
+ * Command line entry point that writes every existing appointment into its calendar day, for
+ * appointments created before the calendar existed, e.g.
+ *
+ * java -jar workshop.jar --calendar.rebuild=true --spring.main.web-environment=false
+ */
+@Component
+public class CalendarCommand implements CommandLineRunner {
+
+    @Autowired
+    private AppointmentCalendar calendar;
+
+    @Autowired
+    private StatementRegistry statements;
+
+    @Value("${calendar.rebuild:false}")
+    private boolean rebuild;
+
+    @Value("${calendar.rebuild.concurrency:32}")
+    private int concurrency;
+
+    @Override
+    public void run(String... args) throws Exception {
+        if(!rebuild) {
+            return;
+        }
+        int added = statements.query("appointments.calendar")
+            .flatMap(result -> result.rows())
+            .map(row -> row.value())
+            .flatMap(appointment -> calendar.add(appointment.getString("id"), appointment), concurrency)
+            .count()
+            .toBlocking()
+            .single();
+        System.out.println("Added " + added + " appointments to the calendar");
+    }
+
+}
@@ -0,0 +1,80 @@
+package couchbase;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import rx.Observable;
+import rx.functions.Func0;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Single-flight for identical reads. While a backend call for an endpoint and key is in
+ * flight, further requests for the same endpoint and key subscribe to that call instead of
+ * starting their own, and all of them receive its result or its error. Only the endpoints
+ * listed in `coalesce.endpoints` are coalesced.
+ */
+@Component
+public class Coalescer {
+
+    private final Set<String> endpoints;
+
+    private final Map<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+    private final Map<String, Counters> counters = new ConcurrentHashMap<String, Counters>();
+
+    @Autowired
+    public Coalescer(@Value("${coalesce.endpoints:}") String[] endpoints) {
+        this.endpoints = new HashSet<String>(Arrays.asList(endpoints));
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> Observable<T> coalesce(String endpoint, String key, Func0<Observable<T>> call) {
+        if(!endpoints.contains(endpoint)) {
+            return call.call();
+        }
+        String flightKey = endpoint + "\u0000" + key;
+        return Observable.defer(() -> {
+            Counters count = counters.computeIfAbsent(endpoint, e -> new Counters());
+            count.requests.increment();
+            Flight flight = new Flight(flightKey, call);
+            Flight existing = flights.putIfAbsent(flightKey, flight);
+            if(existing != null) {
+                count.collapsed.increment();
+                flight = existing;
+            }
+            return (Observable<T>) flight.result;
+        });
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new TreeMap<String, Object>();
+        for(Map.Entry<String, Counters> entry : counters.entrySet()) {
+            Map<String, Object> endpoint = new LinkedHashMap<String, Object>();
+            endpoint.put("requests", entry.getValue().requests.sum());
+            endpoint.put("collapsed", entry.getValue().collapsed.sum());
+            stats.put(entry.getKey(), endpoint);
+        }
+        stats.put("inFlight", flights.size());
+        return stats;
+    }
+
+    private final class Flight {
+
+        private final Observable<Object> result;
+
+        private Flight(String key, Func0<? extends Observable<?>> call) {
+            this.result = Observable.defer(() -> call.call().map(value -> (Object) value))
+                .doOnTerminate(() -> flights.remove(key, this))
+                .cache();
+        }
+    }
+
+    private static final class Counters {
+
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder collapsed = new LongAdder();
+    }
+
+}
@@ -0,0 +1,90 @@
+package couchbase;
+
+/**
+ * Adaptive limit on concurrent requests, after the gradient algorithm of Netflix's
+ * concurrency-limits. A short and a long exponential average of the request latency are
+ * kept; while the short one stays within `tolerance` times the long one the limit grows by
+ * about its square root per update, and as latency rises above that the limit is scaled down
+ * by the ratio of the two, to half at most per update. The long average drifts down when it
+ * is far above the short one, so the baseline recovers after a slow period.
+ *
+ * The limit is not raised while fewer than half of it are in use, so a lightly loaded group
+ * does not build up a limit it has never been tested at.
+ */
+final class ConcurrencyLimiter {
+
+    private static final double SHORT_WINDOW = 10;
+
+    private static final double LONG_WINDOW = 600;
+
+    private static final double SMOOTHING = 0.2;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final double tolerance;
+
+    private double limit;
+
+    private int inFlight;
+
+    private double shortRtt;
+
+    private double longRtt;
+
+    private long samples;
+
+    ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double tolerance) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    synchronized boolean tryAcquire() {
+        if(inFlight >= (int) limit) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Releases a permit taken with {@link #tryAcquire()} and adjusts the limit to the latency
+     * of the request that held it.
+     */
+    synchronized void release(long rttNanos) {
+        boolean appLimited = inFlight < limit / 2;
+        inFlight--;
+        double rtt = Math.max(1, rttNanos);
+        samples++;
+        shortRtt = samples == 1 ? rtt : shortRtt + (rtt - shortRtt) / Math.min(samples, SHORT_WINDOW);
+        longRtt = samples == 1 ? rtt : longRtt + (rtt - longRtt) / Math.min(samples, LONG_WINDOW);
+        if(longRtt / shortRtt > 2) {
+            longRtt *= 0.95;
+        }
+        if(appLimited) {
+            return;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, tolerance * longRtt / shortRtt));
+        double next = limit * gradient + Math.sqrt(limit);
+        limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - SMOOTHING) + next * SMOOTHING));
+    }
+
+    /**
+     * Releases a permit without a latency sample, for a request that never ran.
+     */
+    synchronized void cancel() {
+        inFlight--;
+    }
+
+    synchronized int limit() {
+        return (int) limit;
+    }
+
+    synchronized int inFlight() {
+        return inFlight;
+    }
+
+}
@@ -0,0 +1,326 @@
+package couchbase;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.search.HighlightStyle;
+import com.couchbase.client.java.search.SearchQuery;
+import com.couchbase.client.java.search.queries.MatchQuery;
+import com.couchbase.client.java.util.rawQuerying.AsyncRawQueryExecutor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import rx.Observable;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the `medical-condition` full text searches through one long-lived executor and keeps
+ * a bounded LRU of recent results. A cached result is dropped when its TTL expires, when a
+ * note is added to one of the patients it returned, or when a new note could match it: for a
+ * fuzzy search any new note, otherwise one with one of its search terms or a word sharing a
+ * prefix with one, which covers the inflections an analyzer may stem.
+ *
+ * With `search.backend=embedded` the searches are answered in-process by
+ * {@link PatientSearchIndex} once it has loaded, without the cache since the index is always
+ * current; the default `fts` backend always uses the remote index.
+ *
+ * Searches are paged with `size` and `from`, or with the `next` token of the previous page,
+ * which continues after its last hit in the score and id order (`search_after`). Hits below
+ * `minScore` are dropped. {@link #stream} hands out hits one at a time as they are parsed.
+ */
+@Component
+public class ConditionSearch {
+
+    /**
+     * Number of hits FTS returns when a search does not set a size.
+     */
+    static final int SIZE = 10;
+
+    /**
+     * Largest `from` + `size` FTS accepts.
+     */
+    static final int MAX_WINDOW = 10000;
+
+    /**
+     * Shortest word prefix taken as a possible stem when matching new notes to cached searches.
+     */
+    static final int MIN_STEM = 4;
+
+    private final AsyncRawQueryExecutor executor;
+
+    private final Metrics metrics;
+
+    private final int maxEntries;
+
+    private final long ttl;
+
+    private final Map<Query, CachedResult> cache;
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private final PatientSearchIndex index;
+
+    private final boolean embedded;
+
+    @Autowired
+    public ConditionSearch(Bucket bucket, Metrics metrics, PatientSearchIndex index,
+                           @Value("${search.backend:fts}") String backend,
+                           @Value("${rbac.username}") String username,
+                           @Value("${rbac.password}") String password,
+                           @Value("${fts.cache.max-entries:1000}") int maxEntries,
+                           @Value("${fts.cache.ttl:60000}") long ttl) {
+        this.executor = new AsyncRawQueryExecutor(bucket.name(), username, password, bucket.core());
+        this.metrics = metrics;
+        this.index = index;
+        this.embedded = "embedded".equals(backend);
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.cache = new LinkedHashMap<Query, CachedResult>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Query, CachedResult> eldest) {
+                return size() > ConditionSearch.this.maxEntries;
+            }
+        };
+    }
+
+    public Observable<Map<String, Object>> search(Query query) {
+        if(embedded && index.ready()) {
+            return metrics.timed("embedded", "medical-condition", Observable.fromCallable(() -> page(embedded(query), query)));
+        }
+        CachedResult cached;
+        long generation;
+        synchronized (cache) {
+            generation = invalidations.get();
+            cached = cache.get(query);
+            if(cached != null && cached.expires < System.currentTimeMillis()) {
+                cache.remove(query);
+                cached = null;
+            }
+        }
+        if(cached != null) {
+            return Observable.just(cached.result);
+        }
+        return metrics.timed("fts", "medical-condition", executor.ftsToJsonObject(query.toSearchQuery()))
+            .map(result -> {
+                CachedResult entry = new CachedResult(query, page(result, query), System.currentTimeMillis() + ttl);
+                synchronized (cache) {
+                    // a note added while the search ran may not be in this result
+                    if(generation == invalidations.get()) {
+                        cache.put(query, entry);
+                    }
+                }
+                return entry.result;
+            });
+    }
+
+    /**
+     * The hits of the search as they are parsed from the response, bypassing the cache. The
+     * fields of {@link SearchHits#summary()} are copied into `summary` once the hits are done.
+     */
+    public Observable<byte[]> stream(Query query, JsonObject summary) {
+        Observable<String> response = embedded && index.ready()
+            ? metrics.timed("embedded", "medical-condition", Observable.fromCallable(() -> embedded(query).toString()))
+            : metrics.timed("fts", "medical-condition", executor.ftsToRawJson(query.toSearchQuery()));
+        return response.concatMap(body -> {
+            SearchHits hits = new SearchHits(body, query.minScore, query.size);
+            return Observable.from(() -> hits)
+                .doOnCompleted(() -> {
+                    JsonObject fields = hits.summary();
+                    for(String name : fields.getNames()) {
+                        summary.put(name, fields.get(name));
+                    }
+                });
+        });
+    }
+
+    /**
+     * Brings the embedded index and the cache up to date with a note added to a patient.
+     */
+    public void noteAdded(String patientId, String message) {
+        index.noteAdded(patientId, message);
+        invalidate(patientId, message);
+    }
+
+    public void invalidate(String patientId, String message) {
+        Set<String> terms = InvertedIndex.terms(message);
+        synchronized (cache) {
+            invalidations.incrementAndGet();
+            Iterator<Map.Entry<Query, CachedResult>> iterator = cache.entrySet().iterator();
+            while(iterator.hasNext()) {
+                Map.Entry<Query, CachedResult> next = iterator.next();
+                if(next.getValue().patients.contains(patientId) || next.getValue().matches(terms)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private JsonObject embedded(Query query) {
+        return index.search(query.search, query.fuzziness, query.fields, query.highlight, query.size, query.from, query.after);
+    }
+
+    /**
+     * The response without the hits below the minimum score and with the `next` token, set
+     * when the page is full and no hit fell below the minimum score, as {@link SearchHits}
+     * does for a stream.
+     */
+    static Map<String, Object> page(JsonObject result, Query query) {
+        JsonArray hits = result.getArray("hits") == null ? JsonArray.empty() : result.getArray("hits");
+        List<Object> kept = new ArrayList<Object>();
+        boolean belowMinScore = false;
+        for(int i = 0; i < hits.size() && !belowMinScore; i++) {
+            if(query.minScore != null && hits.getObject(i).getDouble("score") < query.minScore) {
+                belowMinScore = true;
+            } else {
+                kept.add(hits.getObject(i).toMap());
+            }
+        }
+        JsonArray sort = kept.size() == query.size && !belowMinScore ? hits.getObject(kept.size() - 1).getArray("sort") : null;
+        Map<String, Object> page = result.toMap();
+        page.put("hits", kept);
+        page.put("next", sort != null ? ContinuationToken.encode(sort.toString()) : null);
+        return page;
+    }
+
+    /**
+     * Whether a word of the note is a search term, or starts with one or is the start of one
+     * of at least {@link #MIN_STEM} characters.
+     */
+    static boolean overlaps(Set<String> searchTerms, Set<String> noteTerms) {
+        for(String note : noteTerms) {
+            for(String term : searchTerms) {
+                String shorter = note.length() < term.length() ? note : term;
+                if(note.equals(term) || shorter.length() >= MIN_STEM && (note.startsWith(term) || term.startsWith(note))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Value object for the parts of a condition search that determine its result.
+     */
+    public static final class Query {
+
+        private final String search;
+        private final Integer fuzziness;
+        private final List<String> fields;
+        private final boolean highlight;
+        private final int size;
+        private final int from;
+        private final Double minScore;
+        private final JsonArray after;
+
+        public Query(String search, Integer fuzziness, List<String> fields, boolean highlight) {
+            this(search, fuzziness, fields, highlight, SIZE, 0, null, null);
+        }
+
+        /**
+         * Throws IllegalArgumentException if the page is out of range or `after` is not a
+         * `next` token of an earlier search.
+         */
+        public Query(String search, Integer fuzziness, List<String> fields, boolean highlight,
+                     int size, int from, Double minScore, String after) {
+            if(size < 1 || from < 0 || from + size > MAX_WINDOW) {
+                throw new IllegalArgumentException("A positive `size` and a non-negative `from` adding up to at most " + MAX_WINDOW + " are required");
+            } else if(after != null && from > 0) {
+                throw new IllegalArgumentException("Either `from` or `after` can be given, not both");
+            }
+            this.search = search;
+            this.fuzziness = fuzziness;
+            this.fields = fields;
+            this.highlight = highlight;
+            this.size = size;
+            this.from = from;
+            this.minScore = minScore;
+            this.after = after == null ? null : sort(after);
+        }
+
+        private static JsonArray sort(String token) {
+            try {
+                return JsonArray.fromJson(ContinuationToken.decode(token));
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("The `after` token is invalid", e);
+            }
+        }
+
+        SearchQuery toSearchQuery() {
+            MatchQuery fts = SearchQuery.match(search);
+            if(fuzziness != null) {
+                fts.fuzziness(fuzziness);
+            }
+            SearchQuery query = after == null ? new SearchQuery("medical-condition", fts) : new SearchQuery("medical-condition", fts) {
+                @Override
+                public JsonObject export() {
+                    return super.export().put("search_after", after);
+                }
+            };
+            query.limit(size).skip(from).sort("-_score", "_id");
+            query.fields(fields.toArray(new String[fields.size()]));
+            if(highlight) {
+                query.highlight(HighlightStyle.HTML, "notes.message");
+            }
+            return query;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Query query = (Query) o;
+
+            if (highlight != query.highlight) return false;
+            if (!search.equals(query.search)) return false;
+            if (size != query.size) return false;
+            if (from != query.from) return false;
+            if (fuzziness != null ? !fuzziness.equals(query.fuzziness) : query.fuzziness != null) return false;
+            if (minScore != null ? !minScore.equals(query.minScore) : query.minScore != null) return false;
+            if (after != null ? !after.equals(query.after) : query.after != null) return false;
+            return fields.equals(query.fields);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = search.hashCode();
+            result = 31 * result + (fuzziness != null ? fuzziness.hashCode() : 0);
+            result = 31 * result + fields.hashCode();
+            result = 31 * result + (highlight ? 1 : 0);
+            result = 31 * result + size;
+            result = 31 * result + from;
+            result = 31 * result + (minScore != null ? minScore.hashCode() : 0);
+            result = 31 * result + (after != null ? after.hashCode() : 0);
+            return result;
+        }
+    }
+
+    private static final class CachedResult {
+
+        private final Map<String, Object> result;
+        private final Set<String> patients = new HashSet<String>();
+        private final Set<String> terms;
+        private final boolean fuzzy;
+        private final long expires;
+
+        @SuppressWarnings("unchecked")
+        private CachedResult(Query query, Map<String, Object> result, long expires) {
+            this.result = Collections.unmodifiableMap(result);
+            this.terms = InvertedIndex.terms(query.search);
+            this.fuzzy = query.fuzziness != null && query.fuzziness > 0;
+            this.expires = expires;
+            for(Object hit : (List<Object>) result.get("hits")) {
+                patients.add((String) ((Map<String, Object>) hit).get("id"));
+            }
+        }
+
+        /**
+         * Whether a note with these terms may be among the hits of the search.
+         */
+        private boolean matches(Set<String> noteTerms) {
+            return fuzzy ? !noteTerms.isEmpty() : overlaps(terms, noteTerms);
+        }
+    }
+
+}
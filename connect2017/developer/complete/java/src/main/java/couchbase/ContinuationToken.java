@@ -0,0 +1,37 @@
+package couchbase;
+
+import com.couchbase.client.java.document.json.JsonObject;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque cursor for keyset pagination. It wraps the last key of a page, so clients never
+ * depend on the key format and the next page is a seek past that key rather than an OFFSET.
+ */
+final class ContinuationToken {
+
+    private ContinuationToken() {}
+
+    static String encode(String lastKey) {
+        byte[] json = JsonObject.create().put("k", lastKey).toString().getBytes(StandardCharsets.UTF_8);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(json);
+    }
+
+    /**
+     * Returns the key wrapped by the token, or throws IllegalArgumentException if it is not
+     * a token this class produced.
+     */
+    static String decode(String token) {
+        try {
+            String json = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            String key = JsonObject.fromJson(json).getString("k");
+            if(key == null) {
+                throw new IllegalArgumentException("Missing key");
+            }
+            return key;
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid continuation token", e);
+        }
+    }
+
+}
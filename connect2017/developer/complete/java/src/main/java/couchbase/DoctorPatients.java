@@ -0,0 +1,106 @@
+package couchbase;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.couchbase.client.java.subdoc.DocumentFragment;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import rx.Observable;
+import java.util.*;
+
+/**
+ * Fetches a doctor's patients by key instead of through a JOIN. The doctor's `patients` array
+ * is read with a subdocument lookup, the requested page of it is fanned out as parallel
+ * subdocument lookups of the same fields the JOIN projected, and the rows come back in the
+ * order of the array. In a page, patients that could not be read are listed under `errors`
+ * rather than failing the whole request.
+ */
+@Component
+public class DoctorPatients {
+
+    private final Bucket bucket;
+
+    private final Metrics metrics;
+
+    private final int concurrency;
+
+    @Autowired
+    public DoctorPatients(Bucket bucket, Metrics metrics, @Value("${doctor.patients.concurrency:32}") int concurrency) {
+        this.bucket = bucket;
+        this.metrics = metrics;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * All of the doctor's patients as the plain array of rows the JOIN returned. Patients that
+     * could not be read are left out, as the JOIN left out missing ones.
+     */
+    @SuppressWarnings("unchecked")
+    public Observable<List<Map<String, Object>>> fetchAll(String doctorId) {
+        return fetch(doctorId, 0, Integer.MAX_VALUE)
+            .map(response -> (List<Map<String, Object>>) response.get("results"));
+    }
+
+    public Observable<Map<String, Object>> fetch(String doctorId, int offset, int limit) {
+        return metrics.timed("kv", "lookupIn", bucket.async().lookupIn(doctorId).get("type", "patients").execute())
+            .map(DoctorPatients::patientIds)
+            .onErrorResumeNext(e -> e instanceof DocumentDoesNotExistException
+                ? Observable.just(Collections.<String>emptyList())
+                : Observable.<List<String>>error(e))
+            .flatMap(ids -> {
+                List<String> page = ids.subList(Math.min(offset, ids.size()), (int) Math.min((long) offset + limit, ids.size()));
+                return Observable.from(page)
+                    .concatMapEager(this::fetchPatient, page.size() + 1, concurrency)
+                    .toList()
+                    .map(rows -> {
+                        List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+                        List<Map<String, Object>> errors = new ArrayList<Map<String, Object>>();
+                        for(Map<String, Object> row : rows) {
+                            (row.containsKey("message") ? errors : results).add(row);
+                        }
+                        Map<String, Object> response = new LinkedHashMap<String, Object>();
+                        response.put("results", results);
+                        response.put("errors", errors);
+                        response.put("total", ids.size());
+                        response.put("offset", offset);
+                        response.put("limit", limit);
+                        return response;
+                    });
+            });
+    }
+
+    private Observable<Map<String, Object>> fetchPatient(String id) {
+        return metrics.timed("kv", "lookupIn", bucket.async().lookupIn(id).get("information", "timestamp", "type").execute())
+            .map(fragment -> {
+                Map<String, Object> row = new LinkedHashMap<String, Object>();
+                for(String path : Arrays.asList("information", "timestamp", "type")) {
+                    if(fragment.exists(path)) {
+                        Object value = fragment.content(path);
+                        row.put(path, value instanceof JsonObject ? ((JsonObject) value).toMap() : value);
+                    }
+                }
+                row.put("id", id);
+                return row;
+            })
+            .onErrorReturn(e -> {
+                Map<String, Object> row = new LinkedHashMap<String, Object>();
+                row.put("id", id);
+                row.put("message", e instanceof DocumentDoesNotExistException ? "Patient not found" : e.toString());
+                return row;
+            });
+    }
+
+    private static List<String> patientIds(DocumentFragment<?> doctor) {
+        List<String> ids = new ArrayList<String>();
+        if(doctor.exists("type") && "doctor".equals(doctor.content("type")) && doctor.exists("patients")) {
+            for(Object id : doctor.content("patients", JsonArray.class)) {
+                ids.add((String) id);
+            }
+        }
+        return ids;
+    }
+
+}
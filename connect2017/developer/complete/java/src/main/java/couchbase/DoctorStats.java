@@ -0,0 +1,175 @@
+package couchbase;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentAlreadyExistsException;
+import com.couchbase.client.java.subdoc.AsyncMutateInBuilder;
+import com.couchbase.client.java.subdoc.SubdocOptionsBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import rx.Observable;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+
+/**
+ * A `stats::<doctor>` document per doctor with the number of patients, appointments and notes
+ * and the appointments per day (UTC), kept up to date with subdocument counters by the
+ * handlers that change them, so a dashboard reads one document instead of aggregating the
+ * bucket.
+ *
+ * The counters are updated after the change they count and a failed update does not fail the
+ * request, so they can drift, as they do for records loaded through /import.
+ * {@link #reconcile()} recounts everything with N1QL and rewrites the documents.
+ */
+@Component
+public class DoctorStats {
+
+    private static final DateTimeFormatter DAY = DateTimeFormatter.ofPattern("yyyyMMdd").withZone(ZoneOffset.UTC);
+
+    private final Bucket bucket;
+
+    private final Metrics metrics;
+
+    private final StatementRegistry statements;
+
+    private final NoteStore noteStore;
+
+    @Autowired
+    public DoctorStats(Bucket bucket, Metrics metrics, StatementRegistry statements, NoteStore noteStore) {
+        this.bucket = bucket;
+        this.metrics = metrics;
+        this.statements = statements;
+        this.noteStore = noteStore;
+    }
+
+    public static String key(String doctorId) {
+        return "stats::" + doctorId;
+    }
+
+    /**
+     * Counts an appointment created (delta 1) or deleted (delta -1).
+     */
+    public Observable<Boolean> appointment(String doctorId, long appointment, long delta) {
+        return increment(doctorId, delta, "appointments", "days.`" + DAY.format(Instant.ofEpochSecond(appointment)) + "`");
+    }
+
+    public Observable<Boolean> patient(String doctorId) {
+        return increment(doctorId, 1, "patients");
+    }
+
+    public Observable<Boolean> note(String doctorId) {
+        return increment(doctorId, 1, "notes");
+    }
+
+    /**
+     * The stats document of the doctor, with zero counts if nothing was counted yet.
+     */
+    public Observable<Map<String, Object>> get(String doctorId) {
+        return metrics.timed("kv", "get", bucket.async().get(key(doctorId)))
+            .map(document -> document.content())
+            .defaultIfEmpty(empty(doctorId))
+            .map(stats -> {
+                Map<String, Object> result = stats.toMap();
+                result.remove("type");
+                return result;
+            });
+    }
+
+    /**
+     * Recounts the stats of every doctor and replaces the documents that are wrong. Each
+     * document is replaced with the CAS it had before the recount; one that was updated while
+     * counting is left alone and reported as skipped, since the recount may or may not include
+     * that update.
+     */
+    public Observable<Map<String, Object>> reconcile() {
+        Map<String, JsonObject> counted = new HashMap<String, JsonObject>();
+        return rows("stats.doctors", null)
+            .concatMap(doctor -> metrics.timed("kv", "get", bucket.async().get(key(doctor.getString("id"))))
+                .map(document -> JsonDocument.create(document.id(), document.content(), document.cas()))
+                .defaultIfEmpty(JsonDocument.create(key(doctor.getString("id")), null, 0L))
+                .doOnNext(previous -> counted.put(doctor.getString("id"), empty(doctor.getString("id"))
+                    .put("patients", doctor.getLong("patients") == null ? 0L : doctor.getLong("patients")))))
+            .toList()
+            .flatMap(previous -> rows("appointments.calendar", null)
+                .doOnNext(appointment -> {
+                    JsonObject stats = counted.get(appointment.getString("doctor"));
+                    if(stats != null) {
+                        String day = DAY.format(Instant.ofEpochSecond(appointment.getLong("appointment")));
+                        JsonObject days = stats.getObject("days");
+                        stats.put("appointments", stats.getLong("appointments") + 1);
+                        days.put(day, (days.getLong(day) == null ? 0L : days.getLong(day)) + 1);
+                    }
+                })
+                .concatWith(rows(noteStore.isBucketed() ? "stats.notes.bucketed" : "stats.notes", null)
+                    .doOnNext(notes -> {
+                        JsonObject stats = counted.get(notes.getString("doctor"));
+                        if(stats != null) {
+                            stats.put("notes", notes.getLong("notes"));
+                        }
+                    }))
+                .count()
+                .concatMap(read -> Observable.from(previous)))
+            .flatMap(previous -> {
+                JsonObject stats = JsonObject.fromJson(counted.get(previous.id().substring("stats::".length())).toString());
+                if(stats.equals(previous.content())) {
+                    return Observable.just("unchanged");
+                }
+                JsonDocument document = JsonDocument.create(previous.id(), stats, previous.cas());
+                return metrics.timed("kv", previous.cas() == 0 ? "insert" : "replace",
+                        previous.cas() == 0 ? bucket.async().insert(document) : bucket.async().replace(document))
+                    .map(written -> "corrected")
+                    .onErrorResumeNext(e -> e instanceof CASMismatchException || e instanceof DocumentAlreadyExistsException
+                        ? Observable.just("skipped")
+                        : Observable.<String>error(e));
+            }, 32)
+            .toList()
+            .map(outcomes -> {
+                Map<String, Object> summary = new LinkedHashMap<String, Object>();
+                summary.put("doctors", outcomes.size());
+                for(String outcome : Arrays.asList("unchanged", "corrected", "skipped")) {
+                    summary.put(outcome, Collections.frequency(outcomes, outcome));
+                }
+                return summary;
+            });
+    }
+
+    /**
+     * Adds delta to every path in one mutation, creating the document if needed. Emits false
+     * instead of failing, since the counters are only an aggregate of other documents.
+     */
+    private Observable<Boolean> increment(String doctorId, long delta, String... paths) {
+        SubdocOptionsBuilder builder = new SubdocOptionsBuilder();
+        builder.createParents(true);
+        AsyncMutateInBuilder mutation = bucket.async().mutateIn(key(doctorId))
+            .upsertDocument(true)
+            .upsert("type", "stats")
+            .upsert("doctor", doctorId);
+        for(String path : paths) {
+            mutation.counter(path, delta, builder);
+        }
+        return metrics.timed("kv", "mutateIn", mutation.execute())
+            .map(result -> true)
+            .onErrorReturn(e -> false);
+    }
+
+    private Observable<JsonObject> rows(String statement, JsonObject parameters) {
+        return statements.query(statement, parameters)
+            .flatMap(result -> result.rows().map(row -> row.value())
+                .concatWith(result.errors().flatMap(error -> Observable.<JsonObject>error(new IllegalStateException("Query Error: " + error)))));
+    }
+
+    private static JsonObject empty(String doctorId) {
+        return JsonObject.create()
+            .put("type", "stats")
+            .put("doctor", doctorId)
+            .put("patients", 0L)
+            .put("appointments", 0L)
+            .put("notes", 0L)
+            .put("days", JsonObject.create());
+    }
+
+}
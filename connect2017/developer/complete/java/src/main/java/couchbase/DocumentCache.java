@@ -0,0 +1,153 @@
+package couchbase;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.RawJsonDocument;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import rx.Observable;
+import rx.functions.Func1;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-through cache for whole documents, sized by `cache.max-size` with Caffeine's W-TinyLFU
+ * admission. An entry older than `cache.revalidate-after` is checked against the server with a
+ * body-less subdocument lookup and reused only while its CAS is unchanged; every entry is
+ * dropped after `cache.ttl`. Writes made by this service invalidate the document directly.
+ *
+ * Documents are held either decoded, for {@link #get}, or as the raw JSON text the server
+ * stored, for {@link #getRaw}; an entry in the other form counts as a miss.
+ */
+@Component
+public class DocumentCache {
+
+    private final Bucket bucket;
+
+    private final Metrics metrics;
+
+    private final boolean enabled;
+
+    private final long revalidateAfter;
+
+    private final Cache<String, Entry> cache;
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private final LongAdder revalidations = new LongAdder();
+
+    private final LongAdder revalidationMisses = new LongAdder();
+
+    @Autowired
+    public DocumentCache(Bucket bucket, Metrics metrics,
+                         @Value("${cache.enabled:true}") boolean enabled,
+                         @Value("${cache.max-size:10000}") long maxSize,
+                         @Value("${cache.ttl:60000}") long ttl,
+                         @Value("${cache.revalidate-after:1000}") long revalidateAfter) {
+        this.bucket = bucket;
+        this.metrics = metrics;
+        this.enabled = enabled;
+        this.revalidateAfter = revalidateAfter;
+        this.cache = Caffeine.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+            .recordStats()
+            .build();
+    }
+
+    @SuppressWarnings("unchecked")
+    public Observable<Map<String, Object>> get(String id) {
+        return lookup(id, Map.class, this::loadMap).map(content -> (Map<String, Object>) content);
+    }
+
+    public Observable<String> getRaw(String id) {
+        return lookup(id, String.class, this::loadRaw).map(content -> (String) content);
+    }
+
+    public void invalidate(String id) {
+        invalidations.incrementAndGet();
+        cache.invalidate(id);
+    }
+
+    public Map<String, Object> stats() {
+        CacheStats stats = cache.stats();
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("size", cache.estimatedSize());
+        result.put("hits", stats.hitCount());
+        result.put("misses", stats.missCount());
+        result.put("hitRate", stats.hitRate());
+        result.put("evictions", stats.evictionCount());
+        result.put("invalidations", invalidations.get());
+        result.put("revalidations", revalidations.sum());
+        result.put("revalidationMisses", revalidationMisses.sum());
+        return result;
+    }
+
+    private Observable<Object> lookup(String id, Class<?> form, Func1<String, Observable<Entry>> loader) {
+        if(!enabled) {
+            return loader.call(id).map(entry -> entry.content);
+        }
+        Entry entry = cache.getIfPresent(id);
+        if(entry == null || !form.isInstance(entry.content)) {
+            return load(id, loader);
+        }
+        if(System.currentTimeMillis() - entry.validated < revalidateAfter) {
+            return Observable.just(entry.content);
+        }
+        return metrics.timed("kv", "lookupIn", bucket.async().lookupIn(id).exists("type").execute())
+            .flatMap(fragment -> {
+                revalidations.increment();
+                if(fragment.cas() == entry.cas) {
+                    entry.validated = System.currentTimeMillis();
+                    return Observable.just(entry.content);
+                }
+                revalidationMisses.increment();
+                return load(id, loader);
+            })
+            .doOnError(e -> {
+                if(e instanceof DocumentDoesNotExistException) {
+                    invalidate(id);
+                }
+            });
+    }
+
+    private Observable<Object> load(String id, Func1<String, Observable<Entry>> loader) {
+        long generation = invalidations.get();
+        return loader.call(id).map(entry -> {
+            // a write that invalidated while we were reading may not be in this copy
+            if(generation == invalidations.get()) {
+                cache.put(id, entry);
+            }
+            return entry.content;
+        });
+    }
+
+    private Observable<Entry> loadMap(String id) {
+        return metrics.timed("kv", "get", bucket.async().get(id))
+            .map(document -> new Entry(document.cas(), Collections.unmodifiableMap(document.content().toMap())));
+    }
+
+    private Observable<Entry> loadRaw(String id) {
+        return metrics.timed("kv", "get", bucket.async().get(id, RawJsonDocument.class))
+            .map(document -> new Entry(document.cas(), document.content()));
+    }
+
+    private static final class Entry {
+
+        private final long cas;
+        private final Object content;
+        private volatile long validated = System.currentTimeMillis();
+
+        private Entry(long cas, Object content) {
+            this.cas = cas;
+            this.content = content;
+        }
+    }
+
+}
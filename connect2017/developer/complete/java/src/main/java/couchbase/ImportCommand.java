@@ -0,0 +1,41 @@
+package couchbase;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.stereotype.Component;
+import java.io.BufferedReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Command line entry point for the bulk importer. Prints failed lines and a summary, e.g.
+ *
+ * java -jar workshop.jar --import.file=patients.ndjson --import.type=patient --spring.main.web-environment=false
+ */
+@Component
+public class ImportCommand implements CommandLineRunner {
+
+    @Autowired
+    private BulkImporter importer;
+
+    @Value("${import.file:}")
+    private String file;
+
+    @Value("${import.type:}")
+    private String type;
+
+    @Override
+    public void run(String... args) throws Exception {
+        if(file.isEmpty()) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            System.out.println(importer.run(reader, type.isEmpty() ? null : type, batch -> batch.stream()
+                .filter(result -> !result.getBoolean("success"))
+                .forEach(System.out::println)));
+        }
+    }
+
+}
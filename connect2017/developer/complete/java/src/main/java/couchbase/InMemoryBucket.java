@@ -0,0 +1,733 @@
+package couchbase;
+
+import com.couchbase.client.core.CouchbaseException;
+import com.couchbase.client.core.message.ResponseStatus;
+import com.couchbase.client.core.message.kv.subdoc.multi.Lookup;
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.PersistTo;
+import com.couchbase.client.java.ReplicateTo;
+import com.couchbase.client.java.document.*;
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentAlreadyExistsException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.couchbase.client.java.error.subdoc.*;
+import com.couchbase.client.java.query.*;
+import com.couchbase.client.java.subdoc.*;
+import rx.Observable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-process stand-in for a Couchbase bucket, backed by a concurrent hash map of JSON text
+ * with a CAS per document. It implements the part of {@link Bucket} and {@link AsyncBucket}
+ * this application uses: get, exists, insert, upsert, replace, remove, counter, lookupIn,
+ * mutateIn and the N1QL subset described in {@link InMemoryQuery}. Every other method throws
+ * UnsupportedOperationException. Synchronous methods block on their asynchronous counterpart,
+ * ignoring any timeout arguments.
+ *
+ * Every write, including a multi-spec mutateIn, is applied atomically and bumps the CAS, and
+ * the same exceptions as the SDK's are raised for missing documents, CAS mismatches and
+ * subdocument path errors.
+ */
+final class InMemoryBucket {
+
+    private static final Pattern PATH = Pattern.compile("`((?:[^`]|``)*)`|([^.\\[]+)|\\[(-?\\d+)\\]");
+
+    private final String name;
+
+    private final Map<String, Stored> documents = new ConcurrentHashMap<String, Stored>();
+
+    private final Map<String, Set<String>> byType = new ConcurrentHashMap<String, Set<String>>();
+
+    private final Map<String, InMemoryQuery> statements = new ConcurrentHashMap<String, InMemoryQuery>();
+
+    private final AtomicLong cas = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    private volatile boolean closed;
+
+    private InMemoryBucket(String name) {
+        this.name = name;
+    }
+
+    static Bucket create(String name) {
+        InMemoryBucket bucket = new InMemoryBucket(name);
+        AsyncBucket async = (AsyncBucket) Proxy.newProxyInstance(InMemoryBucket.class.getClassLoader(),
+            new Class<?>[] { AsyncBucket.class }, bucket.handler(false, null));
+        return (Bucket) Proxy.newProxyInstance(InMemoryBucket.class.getClassLoader(),
+            new Class<?>[] { Bucket.class }, bucket.handler(true, async));
+    }
+
+    private InvocationHandler handler(boolean sync, AsyncBucket async) {
+        return (proxy, method, args) -> {
+            Object[] arguments = args == null ? new Object[0] : args;
+            switch(method.getName()) {
+                case "toString": return "InMemoryBucket[" + name + "]";
+                case "hashCode": return System.identityHashCode(proxy);
+                case "equals": return proxy == arguments[0];
+                case "async": return async;
+                case "core": return sync ? null : Observable.error(unsupported(method));
+                case "environment": return null;
+            }
+            Method target = find(method, arguments);
+            if(target == null) {
+                throw unsupported(method);
+            }
+            Object result;
+            try {
+                result = target.invoke(this, Arrays.copyOf(arguments, target.getParameterCount()));
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if(sync && result instanceof Observable) {
+                Object value = ((Observable<?>) result).toBlocking().singleOrDefault(null);
+                return method.getReturnType() == boolean.class ? Boolean.TRUE.equals(value) : value;
+            }
+            return result;
+        };
+    }
+
+    /**
+     * The implementing method: same name and parameters, or the same without the trailing
+     * durability and timeout arguments of the synchronous and durable variants.
+     */
+    private static Method find(Method method, Object[] arguments) {
+        Class<?>[] types = method.getParameterTypes();
+        int count = types.length;
+        while(count > 0 && (types[count - 1] == TimeUnit.class || types[count - 1] == PersistTo.class || types[count - 1] == ReplicateTo.class)) {
+            count -= types[count - 1] == TimeUnit.class ? 2 : 1;
+        }
+        try {
+            Method target = InMemoryBucket.class.getDeclaredMethod(method.getName(), Arrays.copyOf(types, count));
+            return target.getReturnType() == Observable.class || target.getReturnType() == method.getReturnType()
+                || method.getReturnType().isAssignableFrom(target.getReturnType()) ? target : null;
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static UnsupportedOperationException unsupported(Method method) {
+        return new UnsupportedOperationException(method.getName() + " is not supported by the in-memory bucket");
+    }
+
+    // key-value operations, named and typed after AsyncBucket
+
+    String name() {
+        return name;
+    }
+
+    Observable<JsonDocument> get(String id) {
+        return get(id, JsonDocument.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    Observable<Document<?>> get(Document<?> document) {
+        return get(document.id(), (Class<Document<?>>) document.getClass());
+    }
+
+    <D extends Document<?>> Observable<D> get(String id, Class<D> target) {
+        return Observable.defer(() -> {
+            Stored stored = documents.get(id);
+            return stored == null ? Observable.<D>empty() : Observable.just(document(id, stored, target));
+        });
+    }
+
+    Observable<Boolean> exists(String id) {
+        return Observable.defer(() -> Observable.just(documents.containsKey(id)));
+    }
+
+    Observable<Document<?>> insert(Document<?> document) {
+        return write(document, (id, existing) -> {
+            if(existing != null) {
+                throw new DocumentAlreadyExistsException();
+            }
+        });
+    }
+
+    Observable<Document<?>> upsert(Document<?> document) {
+        return write(document, (id, existing) -> checkCas(document.cas(), existing));
+    }
+
+    Observable<Document<?>> replace(Document<?> document) {
+        return write(document, (id, existing) -> {
+            if(existing == null) {
+                throw new DocumentDoesNotExistException();
+            }
+            checkCas(document.cas(), existing);
+        });
+    }
+
+    Observable<JsonDocument> remove(String id) {
+        return remove(id, JsonDocument.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    Observable<Document<?>> remove(Document<?> document) {
+        return remove(document.id(), document.cas(), (Class<Document<?>>) document.getClass());
+    }
+
+    <D extends Document<?>> Observable<D> remove(String id, Class<D> target) {
+        return remove(id, 0L, target);
+    }
+
+    Observable<JsonLongDocument> counter(String id, long delta) {
+        return counter(id, delta, -1L);
+    }
+
+    Observable<JsonLongDocument> counter(String id, long delta, long initial) {
+        return Observable.defer(() -> {
+            long[] value = new long[1];
+            Stored stored = documents.compute(id, (key, existing) -> {
+                if(existing == null) {
+                    if(initial < 0) {
+                        throw new DocumentDoesNotExistException();
+                    }
+                    value[0] = initial;
+                } else {
+                    value[0] = Math.max(0L, Long.parseLong(existing.content.trim()) + delta);
+                }
+                return new Stored(Long.toString(value[0]), cas.incrementAndGet(), null);
+            });
+            return Observable.just(JsonLongDocument.create(id, 0, value[0], stored.cas));
+        });
+    }
+
+    Observable<JsonLongDocument> counter(String id, long delta, long initial, int expiry) {
+        return counter(id, delta, initial);
+    }
+
+    AsyncLookupInBuilder lookupIn(String id) {
+        return new LookupIn(id);
+    }
+
+    AsyncMutateInBuilder mutateIn(String id) {
+        return new MutateIn(id);
+    }
+
+    Observable<AsyncN1qlQueryResult> query(N1qlQuery query) {
+        return Observable.defer(() -> {
+            long start = System.nanoTime();
+            JsonObject request = query.n1ql();
+            List<JsonObject> rows;
+            try {
+                InMemoryQuery statement = statements.computeIfAbsent(request.getString("statement"), InMemoryQuery::parse);
+                rows = statement.execute(scan(statement.type(request)), request);
+            } catch (IllegalArgumentException e) {
+                return Observable.just(result(Collections.<JsonObject>emptyList(),
+                    JsonObject.create().put("code", 3000).put("msg", e.getMessage()), start));
+            }
+            return Observable.just(result(rows, null, start));
+        });
+    }
+
+    Observable<Boolean> close() {
+        closed = true;
+        return Observable.just(true);
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    // storage
+
+    private interface Precondition {
+        void check(String id, Stored existing);
+    }
+
+    private Observable<Document<?>> write(Document<?> document, Precondition precondition) {
+        return Observable.defer(() -> {
+            String content = encode(document);
+            String type = typeOf(content);
+            Stored stored = documents.compute(document.id(), (id, existing) -> {
+                precondition.check(id, existing);
+                index(id, type);
+                return new Stored(content, cas.incrementAndGet(), type);
+            });
+            return Observable.<Document<?>>just(document(document.id(), stored, document.getClass()));
+        });
+    }
+
+    private <D extends Document<?>> Observable<D> remove(String id, long expectedCas, Class<D> target) {
+        return Observable.defer(() -> {
+            Stored[] removed = new Stored[1];
+            documents.compute(id, (key, existing) -> {
+                if(existing == null) {
+                    throw new DocumentDoesNotExistException();
+                }
+                checkCas(expectedCas, existing);
+                removed[0] = existing;
+                index(id, null);
+                return null;
+            });
+            return Observable.just(document(id, new Stored(null, removed[0].cas, removed[0].type), target));
+        });
+    }
+
+    private static void checkCas(long expected, Stored existing) {
+        if(expected != 0 && (existing == null || existing.cas != expected)) {
+            throw existing == null ? new DocumentDoesNotExistException() : new CASMismatchException();
+        }
+    }
+
+    /**
+     * Files the id under the type of its new content. Called inside the compute that stores
+     * the content, so concurrent writers of a document index it in the order they wrote it.
+     */
+    private void index(String id, String type) {
+        for(Map.Entry<String, Set<String>> entry : byType.entrySet()) {
+            if(!entry.getKey().equals(type)) {
+                entry.getValue().remove(id);
+            }
+        }
+        if(type != null) {
+            byType.computeIfAbsent(type, t -> ConcurrentHashMap.newKeySet()).add(id);
+        }
+    }
+
+    private Iterable<Map.Entry<String, Map<String, Object>>> scan(String type) {
+        Collection<String> ids = type != null ? byType.getOrDefault(type, Collections.<String>emptySet()) : documents.keySet();
+        List<Map.Entry<String, Map<String, Object>>> scanned = new ArrayList<Map.Entry<String, Map<String, Object>>>();
+        for(String id : ids) {
+            Stored stored = documents.get(id);
+            if(stored != null && stored.content.startsWith("{")) {
+                scanned.add(new AbstractMap.SimpleImmutableEntry<String, Map<String, Object>>(id, JsonObject.fromJson(stored.content).toMap()));
+            }
+        }
+        return scanned;
+    }
+
+    private static String encode(Document<?> document) {
+        Object content = document.content();
+        if(document instanceof RawJsonDocument) {
+            return (String) content;
+        } else if(content instanceof JsonObject || content instanceof JsonArray || content instanceof Number || content instanceof Boolean) {
+            return content.toString();
+        }
+        throw new UnsupportedOperationException(document.getClass().getSimpleName() + " is not supported by the in-memory bucket");
+    }
+
+    private static String typeOf(String content) {
+        if(!content.startsWith("{")) {
+            return null;
+        }
+        Object type = JsonObject.fromJson(content).get("type");
+        return type instanceof String ? (String) type : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <D extends Document<?>> D document(String id, Stored stored, Class<?> target) {
+        String content = stored.content;
+        Document<?> document;
+        if(target == RawJsonDocument.class) {
+            document = RawJsonDocument.create(id, content, stored.cas);
+        } else if(target == JsonLongDocument.class) {
+            document = JsonLongDocument.create(id, content == null ? null : Long.valueOf(content.trim()), stored.cas);
+        } else if(target == JsonArrayDocument.class) {
+            document = JsonArrayDocument.create(id, content == null ? null : JsonArray.fromJson(content), stored.cas);
+        } else if(target == JsonDocument.class) {
+            document = JsonDocument.create(id, content == null ? null : JsonObject.fromJson(content), stored.cas);
+        } else {
+            throw new UnsupportedOperationException(target.getSimpleName() + " is not supported by the in-memory bucket");
+        }
+        return (D) document;
+    }
+
+    private static AsyncN1qlQueryResult result(List<JsonObject> rows, JsonObject error, long start) {
+        List<AsyncN1qlQueryRow> encoded = new ArrayList<AsyncN1qlQueryRow>();
+        long size = 0;
+        for(JsonObject row : rows) {
+            byte[] bytes = row.toString().getBytes(StandardCharsets.UTF_8);
+            size += bytes.length;
+            encoded.add(new DefaultAsyncN1qlQueryRow(bytes));
+        }
+        String elapsed = (System.nanoTime() - start) / 1000 + "us";
+        N1qlMetrics metrics = new N1qlMetrics(JsonObject.create()
+            .put("elapsedTime", elapsed)
+            .put("executionTime", elapsed)
+            .put("resultCount", rows.size())
+            .put("resultSize", size)
+            .put("errorCount", error == null ? 0 : 1));
+        return new DefaultAsyncN1qlQueryResult(
+            Observable.from(encoded),
+            Observable.empty(),
+            Observable.just(metrics),
+            error == null ? Observable.<JsonObject>empty() : Observable.just(error),
+            Observable.empty(),
+            Observable.just(error == null ? "success" : "errors"),
+            error == null,
+            UUID.randomUUID().toString(),
+            "");
+    }
+
+    // subdocument paths, over the Map and List tree of a decoded document
+
+    static List<Object> parsePath(String path) {
+        List<Object> segments = new ArrayList<Object>();
+        Matcher matcher = PATH.matcher(path);
+        int position = 0;
+        while(position < path.length()) {
+            if(path.charAt(position) == '.') {
+                position++;
+                continue;
+            }
+            if(!matcher.find(position) || matcher.start() != position) {
+                throw new PathInvalidException(path);
+            }
+            segments.add(matcher.group(3) != null ? (Object) Integer.valueOf(matcher.group(3))
+                : matcher.group(1) != null ? matcher.group(1).replace("``", "`") : matcher.group(2));
+            position = matcher.end();
+        }
+        return segments;
+    }
+
+    @SuppressWarnings("unchecked")
+    static Object read(Object root, List<Object> segments) {
+        Object current = root;
+        for(Object segment : segments) {
+            if(segment instanceof Integer && current instanceof List) {
+                List<Object> list = (List<Object>) current;
+                int index = (Integer) segment < 0 ? list.size() + (Integer) segment : (Integer) segment;
+                if(index < 0 || index >= list.size()) {
+                    return Missing.PATH;
+                }
+                current = list.get(index);
+            } else if(segment instanceof String && current instanceof Map) {
+                Map<String, Object> map = (Map<String, Object>) current;
+                if(!map.containsKey(segment)) {
+                    return Missing.PATH;
+                }
+                current = map.get(segment);
+            } else {
+                return Missing.MISMATCH;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * The container the last segment of the path lives in, creating missing objects and
+     * arrays on the way if `createParents` is set.
+     */
+    @SuppressWarnings("unchecked")
+    private static Object parent(String id, Map<String, Object> root, List<Object> segments, String path, boolean createParents, boolean arrayLeaf) {
+        Object current = root;
+        for(int i = 0; i < segments.size() - 1; i++) {
+            Object next = read(current, segments.subList(i, i + 1));
+            if(next == Missing.PATH && createParents && segments.get(i) instanceof String) {
+                next = segments.get(i + 1) instanceof Integer ? new ArrayList<Object>() : new LinkedHashMap<String, Object>();
+                ((Map<String, Object>) current).put((String) segments.get(i), next);
+            } else if(next == Missing.PATH) {
+                throw new PathNotFoundException(id, path);
+            } else if(next == Missing.MISMATCH) {
+                throw new PathMismatchException(id, path);
+            }
+            current = next;
+        }
+        return current;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object apply(String id, Map<String, Object> root, MutationSpec spec) {
+        String path = spec.path();
+        List<Object> segments = parsePath(path);
+        Object fragment = plain(spec.fragment());
+        switch(spec.type()) {
+            case DICT_UPSERT:
+            case DICT_ADD:
+            case REPLACE:
+            case DELETE: {
+                if(segments.isEmpty()) {
+                    throw new PathInvalidException(id, path);
+                }
+                Object parent = parent(id, root, segments, path, spec.createParents() && spec.type() != com.couchbase.client.core.message.kv.subdoc.multi.Mutation.REPLACE, false);
+                Object leaf = segments.get(segments.size() - 1);
+                Object existing = read(parent, Collections.singletonList(leaf));
+                if(existing == Missing.MISMATCH) {
+                    throw new PathMismatchException(id, path);
+                }
+                if(spec.type() == com.couchbase.client.core.message.kv.subdoc.multi.Mutation.DICT_ADD && existing != Missing.PATH) {
+                    throw new PathExistsException(id, path);
+                }
+                if((spec.type() == com.couchbase.client.core.message.kv.subdoc.multi.Mutation.REPLACE
+                    || spec.type() == com.couchbase.client.core.message.kv.subdoc.multi.Mutation.DELETE) && existing == Missing.PATH) {
+                    throw new PathNotFoundException(id, path);
+                }
+                if(parent instanceof List) {
+                    List<Object> list = (List<Object>) parent;
+                    int index = (Integer) leaf < 0 ? list.size() + (Integer) leaf : (Integer) leaf;
+                    if(spec.type() == com.couchbase.client.core.message.kv.subdoc.multi.Mutation.DELETE) {
+                        list.remove(index);
+                    } else {
+                        list.set(index, fragment);
+                    }
+                } else if(spec.type() == com.couchbase.client.core.message.kv.subdoc.multi.Mutation.DELETE) {
+                    ((Map<String, Object>) parent).remove((String) leaf);
+                } else {
+                    ((Map<String, Object>) parent).put((String) leaf, fragment);
+                }
+                return null;
+            }
+            case COUNTER: {
+                Object parent = parent(id, root, segments, path, spec.createParents(), false);
+                Object leaf = segments.get(segments.size() - 1);
+                Object existing = read(parent, Collections.singletonList(leaf));
+                if(existing != Missing.PATH && !(existing instanceof Number)) {
+                    throw new PathMismatchException(id, path);
+                }
+                long value = (existing == Missing.PATH ? 0L : ((Number) existing).longValue()) + ((Number) fragment).longValue();
+                if(parent instanceof List) {
+                    ((List<Object>) parent).set((Integer) leaf, value);
+                } else {
+                    ((Map<String, Object>) parent).put((String) leaf, value);
+                }
+                return value;
+            }
+            case ARRAY_PUSH_LAST:
+            case ARRAY_PUSH_FIRST:
+            case ARRAY_ADD_UNIQUE: {
+                Object array = segments.isEmpty() ? root : read(root, segments);
+                if(array == Missing.PATH && spec.createParents()) {
+                    Object parent = parent(id, root, segments, path, true, true);
+                    array = new ArrayList<Object>();
+                    ((Map<String, Object>) parent).put((String) segments.get(segments.size() - 1), array);
+                } else if(array == Missing.PATH) {
+                    throw new PathNotFoundException(id, path);
+                } else if(!(array instanceof List)) {
+                    throw new PathMismatchException(id, path);
+                }
+                List<Object> list = (List<Object>) array;
+                List<Object> values = spec.fragment() instanceof MultiValue ? (List<Object>) fragment : Collections.singletonList(fragment);
+                if(spec.type() == com.couchbase.client.core.message.kv.subdoc.multi.Mutation.ARRAY_ADD_UNIQUE) {
+                    if(fragment instanceof Map || fragment instanceof List) {
+                        throw new CannotInsertValueException("Only primitives can be added uniquely to " + path);
+                    } else if(list.contains(fragment)) {
+                        throw new PathExistsException(id, path);
+                    }
+                    list.add(fragment);
+                } else if(spec.type() == com.couchbase.client.core.message.kv.subdoc.multi.Mutation.ARRAY_PUSH_FIRST) {
+                    list.addAll(0, values);
+                } else {
+                    list.addAll(values);
+                }
+                return null;
+            }
+            default:
+                throw new UnsupportedOperationException(spec.type() + " is not supported by the in-memory bucket");
+        }
+    }
+
+    /**
+     * Converts JsonObject, JsonArray and MultiValue fragments into plain maps and lists.
+     */
+    private static Object plain(Object value) {
+        if(value instanceof JsonObject) {
+            return ((JsonObject) value).toMap();
+        } else if(value instanceof JsonArray) {
+            return ((JsonArray) value).toList();
+        } else if(value instanceof MultiValue) {
+            List<Object> values = new ArrayList<Object>();
+            for(Object item : (MultiValue<?>) value) {
+                values.add(plain(item));
+            }
+            return values;
+        }
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object json(Object value) {
+        if(value instanceof Map) {
+            return JsonObject.from((Map<String, ?>) value);
+        } else if(value instanceof List) {
+            return JsonArray.from((List<?>) value);
+        }
+        return value;
+    }
+
+    private enum Missing { PATH, MISMATCH }
+
+    private static final class Stored {
+
+        private final String content;
+        private final long cas;
+        private final String type;
+
+        private Stored(String content, long cas, String type) {
+            this.content = content;
+            this.cas = cas;
+            this.type = type;
+        }
+    }
+
+    private final class LookupIn extends AsyncLookupInBuilder {
+
+        private final String id;
+        private final List<LookupSpec> specs = new ArrayList<LookupSpec>();
+
+        private LookupIn(String id) {
+            super(null, name, null, null, id);
+            this.id = id;
+        }
+
+        @Override
+        public AsyncLookupInBuilder get(String... paths) {
+            for(String path : paths) {
+                specs.add(new LookupSpec(Lookup.GET, path));
+            }
+            return this;
+        }
+
+        @Override
+        public AsyncLookupInBuilder get() {
+            specs.add(new LookupSpec(Lookup.GETDOC, ""));
+            return this;
+        }
+
+        @Override
+        public AsyncLookupInBuilder get(String path, SubdocOptionsBuilder options) {
+            return get(path);
+        }
+
+        @Override
+        public AsyncLookupInBuilder get(Iterable<String> paths, SubdocOptionsBuilder options) {
+            paths.forEach(this::get);
+            return this;
+        }
+
+        @Override
+        public AsyncLookupInBuilder exists(String... paths) {
+            for(String path : paths) {
+                specs.add(new LookupSpec(Lookup.EXIST, path));
+            }
+            return this;
+        }
+
+        @Override
+        public AsyncLookupInBuilder exists(String path, SubdocOptionsBuilder options) {
+            return exists(path);
+        }
+
+        @Override
+        public AsyncLookupInBuilder exists(Iterable<String> paths, SubdocOptionsBuilder options) {
+            paths.forEach(this::exists);
+            return this;
+        }
+
+        @Override
+        public AsyncLookupInBuilder getCount(String... paths) {
+            for(String path : paths) {
+                specs.add(new LookupSpec(Lookup.GET_COUNT, path));
+            }
+            return this;
+        }
+
+        @Override
+        public AsyncLookupInBuilder getCount(String path, SubdocOptionsBuilder options) {
+            return getCount(path);
+        }
+
+        @Override
+        public AsyncLookupInBuilder getCount(Iterable<String> paths, SubdocOptionsBuilder options) {
+            paths.forEach(this::getCount);
+            return this;
+        }
+
+        @Override
+        public Observable<DocumentFragment<Lookup>> execute() {
+            return Observable.defer(() -> {
+                Stored stored = documents.get(id);
+                if(stored == null) {
+                    return Observable.error(new DocumentDoesNotExistException());
+                }
+                Map<String, Object> root = JsonObject.fromJson(stored.content).toMap();
+                List<SubdocOperationResult<Lookup>> results = new ArrayList<SubdocOperationResult<Lookup>>();
+                for(LookupSpec spec : specs) {
+                    Object value = read(root, parsePath(spec.path()));
+                    ResponseStatus status = value == Missing.PATH ? ResponseStatus.SUBDOC_PATH_NOT_FOUND
+                        : value == Missing.MISMATCH ? ResponseStatus.SUBDOC_PATH_MISMATCH : ResponseStatus.SUCCESS;
+                    Object content;
+                    if(spec.lookup() == Lookup.EXIST) {
+                        content = status == ResponseStatus.SUCCESS;
+                    } else if(status != ResponseStatus.SUCCESS) {
+                        content = status == ResponseStatus.SUBDOC_PATH_NOT_FOUND
+                            ? new PathNotFoundException(id, spec.path()) : new PathMismatchException(id, spec.path());
+                    } else if(spec.lookup() == Lookup.GET_COUNT) {
+                        content = value instanceof Map ? ((Map<?, ?>) value).size() : value instanceof List ? ((List<?>) value).size() : (Object) new PathMismatchException(id, spec.path());
+                    } else {
+                        content = json(value);
+                    }
+                    results.add(SubdocOperationResult.createResult(spec.path(), spec.lookup(), status, content));
+                }
+                return Observable.just(new DocumentFragment<Lookup>(id, stored.cas, null, results));
+            });
+        }
+    }
+
+    private final class MutateIn extends AsyncMutateInBuilder {
+
+        private MutateIn(String id) {
+            super(null, name, null, null, id);
+        }
+
+        @Override
+        public Observable<DocumentFragment<com.couchbase.client.core.message.kv.subdoc.multi.Mutation>> execute(PersistTo persistTo, ReplicateTo replicateTo) {
+            return execute();
+        }
+
+        @Override
+        public Observable<DocumentFragment<com.couchbase.client.core.message.kv.subdoc.multi.Mutation>> execute(PersistTo persistTo) {
+            return execute();
+        }
+
+        @Override
+        public Observable<DocumentFragment<com.couchbase.client.core.message.kv.subdoc.multi.Mutation>> execute(ReplicateTo replicateTo) {
+            return execute();
+        }
+
+        @Override
+        public Observable<DocumentFragment<com.couchbase.client.core.message.kv.subdoc.multi.Mutation>> execute() {
+            return Observable.defer(() -> {
+                List<SubdocOperationResult<com.couchbase.client.core.message.kv.subdoc.multi.Mutation>> results =
+                    new ArrayList<SubdocOperationResult<com.couchbase.client.core.message.kv.subdoc.multi.Mutation>>();
+                Stored stored = documents.compute(docId, (id, existing) -> {
+                    if(existing == null && !upsertDocument && !insertDocument) {
+                        throw new DocumentDoesNotExistException();
+                    } else if(existing != null && insertDocument) {
+                        throw new DocumentAlreadyExistsException();
+                    }
+                    checkCas(cas, existing);
+                    Map<String, Object> root = existing == null ? new LinkedHashMap<String, Object>() : JsonObject.fromJson(existing.content).toMap();
+                    for(int i = 0; i < mutationSpecs.size(); i++) {
+                        MutationSpec spec = mutationSpecs.get(i);
+                        try {
+                            Object value = apply(id, root, spec);
+                            results.add(SubdocOperationResult.createResult(spec.path(), spec.type(), ResponseStatus.SUCCESS, value));
+                        } catch (CouchbaseException e) {
+                            if(mutationSpecs.size() == 1) {
+                                throw e;
+                            }
+                            throw new MultiMutationException(i, ResponseStatus.FAILURE, mutationSpecs, e);
+                        }
+                    }
+                    String type = root.get("type") instanceof String ? (String) root.get("type") : null;
+                    index(id, type);
+                    return new Stored(JsonObject.from(root).toString(), InMemoryBucket.this.cas.incrementAndGet(), type);
+                });
+                return Observable.just(new DocumentFragment<com.couchbase.client.core.message.kv.subdoc.multi.Mutation>(docId, stored.cas, null, results));
+            });
+        }
+    }
+
+}
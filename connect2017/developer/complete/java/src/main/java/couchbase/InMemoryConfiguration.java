@@ -0,0 +1,23 @@
+package couchbase;
+
+import com.couchbase.client.java.Bucket;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+/**
+ * Replaces the cluster connection with an {@link InMemoryBucket} when running with
+ * `--spring.profiles.active=memory`, for local benchmarks and single-node deployments without
+ * Couchbase. Data is lost on restart and full-text search is unavailable.
+ */
+@Configuration
+@Profile("memory")
+public class InMemoryConfiguration {
+
+    @Bean
+    public Bucket bucket(@Value("${bucket}") String name) {
+        return InMemoryBucket.create(name);
+    }
+
+}
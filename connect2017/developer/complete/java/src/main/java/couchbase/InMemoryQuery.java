@@ -0,0 +1,273 @@
+package couchbase;
+
+import com.couchbase.client.java.document.json.JsonObject;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The subset of N1QL the in-memory bucket can answer: a SELECT from the bucket filtered by a
+ * conjunction of comparisons of fields or META().id against literals and named parameters,
+ * optionally ordered and limited, e.g.
+ *
+ * SELECT META().id, `default`.* FROM `default` WHERE type = 'patient' AND META().id > $after ORDER BY META().id LIMIT $limit
+ *
+ * Anything else (joins, ANY ... SATISFIES, functions, OR) is rejected when parsing.
+ */
+final class InMemoryQuery {
+
+    private static final Pattern SELECT = Pattern.compile(
+        "SELECT\\s+(?<select>.+?)\\s+FROM\\s+`?(?<bucket>[\\w.-]+)`?(?:\\s+(?:AS\\s+)?(?!WHERE\\b)(?<alias>\\w+))?"
+            + "(?:\\s+WHERE\\s+(?<where>.+?))?(?:\\s+ORDER\\s+BY\\s+(?<order>.+?))?(?:\\s+LIMIT\\s+(?<limit>\\S+))?\\s*;?",
+        Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private static final Pattern COMPARISON = Pattern.compile(
+        "(?<lhs>[\\w.`()]+)\\s*(?<op>==|=|!=|<>|>=|<=|>|<)\\s*(?<rhs>'[^']*'|\"[^\"]*\"|\\$\\w+|-?\\d+(?:\\.\\d+)?|TRUE|FALSE)",
+        Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern IS = Pattern.compile(
+        "(?<lhs>[\\w.`()]+)\\s+IS\\s+(?<not>NOT\\s+)?(?<kind>VALUED|MISSING|NULL|NUMBER|STRING)",
+        Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern PROJECTION = Pattern.compile(
+        "(?<expr>[\\w.`()*]+)(?:\\s+AS\\s+(?<name>\\w+))?", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern UNSUPPORTED = Pattern.compile(
+        "\\b(JOIN|NEST|UNNEST|ANY|EVERY|SATISFIES|OR|DISTINCT|GROUP|UNION|LET|IN)\\b", Pattern.CASE_INSENSITIVE);
+
+    private static final String ID = "META().id";
+
+    private final List<String[]> projections = new ArrayList<String[]>();
+
+    private final List<Condition> conditions = new ArrayList<Condition>();
+
+    private final Set<String> names = new HashSet<String>();
+
+    private String keyspace;
+
+    private String orderBy;
+
+    private boolean descending;
+
+    private String limit;
+
+    private InMemoryQuery() {}
+
+    static InMemoryQuery parse(String statement) {
+        Matcher matcher = SELECT.matcher(statement.trim());
+        if(!matcher.matches() || UNSUPPORTED.matcher(statement).find()) {
+            throw new IllegalArgumentException("Statement is not supported by the in-memory bucket: " + statement);
+        }
+        InMemoryQuery query = new InMemoryQuery();
+        query.keyspace = matcher.group("alias") != null ? matcher.group("alias") : matcher.group("bucket");
+        query.names.add(matcher.group("bucket"));
+        query.names.add(query.keyspace);
+        for(String item : matcher.group("select").split(",")) {
+            Matcher projection = PROJECTION.matcher(item.trim());
+            if(!projection.matches()) {
+                throw new IllegalArgumentException("Projection is not supported by the in-memory bucket: " + item);
+            }
+            String raw = projection.group("expr").replace("`", "");
+            if(raw.equals("*") || raw.endsWith(".*")) {
+                query.projections.add(new String[] { raw.equals("*") ? "*" : ".*", query.keyspace });
+                continue;
+            }
+            String expr = query.path(raw);
+            String name = projection.group("name") != null ? projection.group("name")
+                : expr.equals(ID) ? "id" : expr.substring(expr.lastIndexOf('.') + 1);
+            query.projections.add(new String[] { expr, name });
+        }
+        if(matcher.group("where") != null) {
+            for(String term : matcher.group("where").split("(?i)\\s+AND\\s+")) {
+                query.conditions.add(query.condition(term.trim()));
+            }
+        }
+        if(matcher.group("order") != null) {
+            String[] order = matcher.group("order").trim().split("\\s+");
+            query.orderBy = query.path(order[0]);
+            query.descending = order.length > 1 && "DESC".equalsIgnoreCase(order[1]);
+        }
+        query.limit = matcher.group("limit");
+        return query;
+    }
+
+    /**
+     * The value `type` is required to equal, if any, so the bucket can scan only that type.
+     */
+    String type(JsonObject parameters) {
+        for(Condition condition : conditions) {
+            if(condition.path.equals("type") && condition.op.equals("=")) {
+                Object value = condition.value(parameters);
+                return value instanceof String ? (String) value : null;
+            }
+        }
+        return null;
+    }
+
+    List<JsonObject> execute(Iterable<Map.Entry<String, Map<String, Object>>> documents, JsonObject parameters) {
+        List<Map.Entry<String, Map<String, Object>>> matches = new ArrayList<Map.Entry<String, Map<String, Object>>>();
+        for(Map.Entry<String, Map<String, Object>> document : documents) {
+            boolean match = true;
+            for(Condition condition : conditions) {
+                if(!condition.test(document.getKey(), document.getValue(), parameters)) {
+                    match = false;
+                    break;
+                }
+            }
+            if(match) {
+                matches.add(document);
+            }
+        }
+        if(orderBy != null) {
+            Comparator<Map.Entry<String, Map<String, Object>>> order = (a, b) ->
+                compare(value(orderBy, a.getKey(), a.getValue()), value(orderBy, b.getKey(), b.getValue()));
+            matches.sort(descending ? order.reversed() : order);
+        }
+        int max = Integer.MAX_VALUE;
+        if(limit != null) {
+            Object value = limit.startsWith("$") ? parameters.get(limit) : Integer.valueOf(limit);
+            max = value instanceof Number ? ((Number) value).intValue() : max;
+        }
+        List<JsonObject> rows = new ArrayList<JsonObject>();
+        for(Map.Entry<String, Map<String, Object>> document : matches) {
+            if(rows.size() >= max) {
+                break;
+            }
+            rows.add(project(document.getKey(), document.getValue()));
+        }
+        return rows;
+    }
+
+    @SuppressWarnings("unchecked")
+    private JsonObject project(String id, Map<String, Object> document) {
+        Map<String, Object> row = new LinkedHashMap<String, Object>();
+        for(String[] projection : projections) {
+            String expr = projection[0];
+            if(expr.equals("*")) {
+                row.put(projection[1], document);
+            } else if(expr.equals(".*")) {
+                row.putAll(document);
+            } else {
+                Object value = value(expr, id, document);
+                if(value != null) {
+                    row.put(projection[1], value);
+                }
+            }
+        }
+        return JsonObject.from(row);
+    }
+
+    private Condition condition(String term) {
+        Matcher is = IS.matcher(term);
+        if(is.matches()) {
+            return new Condition(path(is.group("lhs")), (is.group("not") != null ? "NOT " : "") + is.group("kind").toUpperCase(), null);
+        }
+        Matcher comparison = COMPARISON.matcher(term);
+        if(comparison.matches()) {
+            String op = comparison.group("op");
+            return new Condition(path(comparison.group("lhs")), op.equals("==") ? "=" : op.equals("<>") ? "!=" : op, comparison.group("rhs"));
+        }
+        throw new IllegalArgumentException("Condition is not supported by the in-memory bucket: " + term);
+    }
+
+    /**
+     * Normalizes a path: backticks and a leading bucket or alias name are dropped and any
+     * META(...).id becomes META().id.
+     */
+    private String path(String expr) {
+        String path = expr.replace("`", "");
+        if(path.matches("(?i)META\\(\\w*\\)\\.id")) {
+            return ID;
+        }
+        int dot = path.indexOf('.');
+        if(dot > 0 && names.contains(path.substring(0, dot))) {
+            path = path.substring(dot + 1);
+        }
+        return path;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object value(String path, String id, Map<String, Object> document) {
+        if(path.equals(ID)) {
+            return id;
+        }
+        Object current = document;
+        for(String segment : path.split("\\.")) {
+            if(!(current instanceof Map)) {
+                return null;
+            }
+            current = ((Map<String, Object>) current).get(segment);
+        }
+        return current;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compare(Object a, Object b) {
+        if(a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        if(a instanceof Number && b instanceof Number) {
+            return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+        if(a.getClass() == b.getClass() && a instanceof Comparable) {
+            return ((Comparable<Object>) a).compareTo(b);
+        }
+        return a.getClass().getName().compareTo(b.getClass().getName());
+    }
+
+    private static final class Condition {
+
+        private final String path;
+        private final String op;
+        private final String operand;
+
+        private Condition(String path, String op, String operand) {
+            this.path = path;
+            this.op = op;
+            this.operand = operand;
+        }
+
+        private Object value(JsonObject parameters) {
+            if(operand.startsWith("$")) {
+                return parameters.get(operand);
+            } else if(operand.startsWith("'") || operand.startsWith("\"")) {
+                return operand.substring(1, operand.length() - 1);
+            } else if(operand.equalsIgnoreCase("TRUE") || operand.equalsIgnoreCase("FALSE")) {
+                return Boolean.valueOf(operand);
+            }
+            return operand.contains(".") ? (Object) Double.valueOf(operand) : (Object) Long.valueOf(operand);
+        }
+
+        private boolean test(String id, Map<String, Object> document, JsonObject parameters) {
+            Object actual = InMemoryQuery.value(path, id, document);
+            switch(op) {
+                case "VALUED": return actual != null;
+                case "NOT VALUED": return actual == null;
+                case "MISSING": return actual == null && !document.containsKey(path);
+                case "NOT MISSING": return actual != null || document.containsKey(path);
+                case "NULL": return actual == null && document.containsKey(path);
+                case "NOT NULL": return actual != null;
+                case "NUMBER": return actual instanceof Number;
+                case "NOT NUMBER": return !(actual instanceof Number);
+                case "STRING": return actual instanceof String;
+                case "NOT STRING": return !(actual instanceof String);
+            }
+            Object expected = value(parameters);
+            if(actual == null || expected == null
+                || (actual instanceof Number) != (expected instanceof Number)
+                || (!(actual instanceof Number) && actual.getClass() != expected.getClass())) {
+                return false;
+            }
+            int compared = compare(actual, expected);
+            switch(op) {
+                case "=": return compared == 0;
+                case "!=": return compared != 0;
+                case ">": return compared > 0;
+                case ">=": return compared >= 0;
+                case "<": return compared < 0;
+                default: return compared <= 0;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,536 @@
+package couchbase;
+
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process inverted index over patient names and note messages, answering the same match
+ * queries as the `medical-condition` FTS index with a response of the same shape.
+ *
+ * Every patient is one document whose terms are the lower-cased words of its first name,
+ * last name and notes. Postings are doc number gaps and term frequencies, variable-byte
+ * encoded and only ever appended to: a patient that changes is indexed again under a new
+ * doc number and its old one is marked deleted, and the index is rebuilt once deleted
+ * documents outnumber live ones. Hits are ranked with BM25. With fuzziness every dictionary
+ * term within that Levenshtein distance of a search term matches too, found by running a
+ * Levenshtein automaton over the sorted dictionary and skipping every prefix it rejects.
+ */
+final class InvertedIndex {
+
+    static final int MAX_FUZZINESS = 2;
+
+    static final String FIRSTNAME = "information.firstname";
+
+    static final String LASTNAME = "information.lastname";
+
+    static final String MESSAGE = "notes.message";
+
+    private static final Pattern WORD = Pattern.compile("\\w+");
+
+    private static final double K1 = 1.2;
+
+    private static final double B = 0.75;
+
+    private static final int FRAGMENT = 200;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final NavigableMap<String, Postings> dictionary = new TreeMap<String, Postings>();
+
+    private final Map<String, Integer> numbers = new HashMap<String, Integer>();
+
+    private final List<Doc> docs = new ArrayList<Doc>();
+
+    private long totalLength;
+
+    /**
+     * Indexes a patient, replacing what was indexed for it before.
+     */
+    void put(String id, String firstname, String lastname, List<String> messages) {
+        lock.writeLock().lock();
+        try {
+            remove(numbers.get(id));
+            add(new Doc(id, firstname, lastname, new ArrayList<String>(messages)));
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds notes to a patient, which is created without a name if it is not indexed yet.
+     */
+    void addNotes(String id, List<String> messages) {
+        lock.writeLock().lock();
+        try {
+            Integer number = numbers.get(id);
+            Doc previous = number == null ? null : docs.get(number);
+            List<String> all = new ArrayList<String>(previous == null ? Collections.<String>emptyList() : previous.messages);
+            all.addAll(messages);
+            remove(number);
+            add(new Doc(id, previous == null ? null : previous.firstname, previous == null ? null : previous.lastname, all));
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void delete(String id) {
+        lock.writeLock().lock();
+        try {
+            remove(numbers.get(id));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return numbers.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Matches any of the words of `text`, each within `fuzziness` edits, and returns the `size`
+     * best hits after skipping `from` as an FTS search response: `hits` with `id`, `score`,
+     * the requested `fields`, `sort` and, if `highlight` is set, `fragments` of the matching
+     * notes with the matched words in `<mark>` tags, followed by `total_hits` and `max_score`.
+     * Hits are ordered by score and then id; `after`, the `sort` of a previous hit, starts the
+     * page right behind that hit.
+     */
+    JsonObject search(String text, int fuzziness, List<String> fields, boolean highlight, int size, int from, JsonArray after) {
+        if(fuzziness < 0 || fuzziness > MAX_FUZZINESS) {
+            throw new IllegalArgumentException("Fuzziness must be between 0 and " + MAX_FUZZINESS);
+        }
+        float afterScore = Float.POSITIVE_INFINITY;
+        String afterId = null;
+        if(after != null) {
+            try {
+                afterScore = Float.parseFloat(after.getString(0));
+                afterId = after.getString(1);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Invalid search_after " + after, e);
+            }
+        }
+        long start = System.nanoTime();
+        lock.readLock().lock();
+        try {
+            float[] scores = new float[docs.size()];
+            Set<String> matched = new HashSet<String>();
+            double average = numbers.isEmpty() ? 1 : (double) totalLength / numbers.size();
+            for(String term : terms(text)) {
+                float[] best = new float[docs.size()];
+                for(Map.Entry<String, Integer> expansion : expand(term, fuzziness).entrySet()) {
+                    Postings postings = dictionary.get(expansion.getKey());
+                    double idf = Math.log(1 + (numbers.size() - postings.live + 0.5) / (postings.live + 0.5));
+                    double boost = 1.0 / (1 + expansion.getValue());
+                    matched.add(expansion.getKey());
+                    Postings.Reader reader = postings.reader();
+                    while(reader.next()) {
+                        Doc doc = docs.get(reader.doc);
+                        if(doc == null) {
+                            continue;
+                        }
+                        double tf = reader.frequency;
+                        float score = (float) (boost * idf * tf * (K1 + 1) / (tf + K1 * (1 - B + B * doc.length / average)));
+                        best[reader.doc] = Math.max(best[reader.doc], score);
+                    }
+                }
+                for(int i = 0; i < best.length; i++) {
+                    scores[i] += best[i];
+                }
+            }
+            PriorityQueue<Integer> top = new PriorityQueue<Integer>(Math.max(1, from + size), (a, b) -> scores[a] != scores[b]
+                ? Float.compare(scores[a], scores[b])
+                : docs.get(b).id.compareTo(docs.get(a).id));
+            int total = 0;
+            float max = 0;
+            for(int i = 0; i < scores.length; i++) {
+                if(scores[i] > 0) {
+                    total++;
+                    max = Math.max(max, scores[i]);
+                    if(scores[i] < afterScore || scores[i] == afterScore && afterId != null && docs.get(i).id.compareTo(afterId) > 0) {
+                        top.add(i);
+                        if(top.size() > from + size) {
+                            top.poll();
+                        }
+                    }
+                }
+            }
+            LinkedList<JsonObject> hits = new LinkedList<JsonObject>();
+            while(top.size() > from) {
+                int number = top.poll();
+                hits.addFirst(hit(docs.get(number), scores[number], fields, highlight ? matched : null));
+            }
+            return JsonObject.create()
+                .put("status", JsonObject.create().put("total", 1).put("failed", 0).put("successful", 1))
+                .put("hits", JsonArray.from(new ArrayList<Object>(hits)))
+                .put("total_hits", total)
+                .put("max_score", (double) max)
+                .put("took", System.nanoTime() - start);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The dictionary terms within `fuzziness` edits of `term`, with their distance.
+     */
+    Map<String, Integer> expand(String term, int fuzziness) {
+        Map<String, Integer> expansions = new LinkedHashMap<String, Integer>();
+        if(fuzziness == 0) {
+            if(dictionary.containsKey(term)) {
+                expansions.put(term, 0);
+            }
+            return expansions;
+        }
+        Automaton automaton = new Automaton(term, fuzziness);
+        List<int[]> rows = new ArrayList<int[]>();
+        rows.add(automaton.start());
+        String previous = "";
+        String candidate = dictionary.isEmpty() ? null : dictionary.firstKey();
+        while(candidate != null) {
+            int depth = commonPrefix(previous, candidate);
+            while(rows.size() > depth + 1) {
+                rows.remove(rows.size() - 1);
+            }
+            boolean rejected = false;
+            for(int i = depth; i < candidate.length(); i++) {
+                int[] row = automaton.step(rows.get(i), candidate.charAt(i));
+                if(!automaton.canMatch(row)) {
+                    rejected = true;
+                    previous = candidate.substring(0, i + 1);
+                    candidate = dictionary.higherKey(previous + Character.MAX_VALUE);
+                    break;
+                }
+                rows.add(row);
+            }
+            if(!rejected) {
+                int distance = automaton.distance(rows.get(candidate.length()));
+                if(distance <= fuzziness) {
+                    expansions.put(candidate, distance);
+                }
+                previous = candidate;
+                candidate = dictionary.higherKey(candidate);
+            }
+        }
+        return expansions;
+    }
+
+    static Set<String> terms(String text) {
+        Set<String> terms = new LinkedHashSet<String>();
+        if(text != null) {
+            Matcher matcher = WORD.matcher(text);
+            while(matcher.find()) {
+                terms.add(matcher.group().toLowerCase(Locale.ROOT));
+            }
+        }
+        return terms;
+    }
+
+    private void add(Doc doc) {
+        int number = docs.size();
+        Map<String, Integer> frequencies = frequencies(doc);
+        for(Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+            dictionary.computeIfAbsent(entry.getKey(), term -> new Postings()).add(number, entry.getValue());
+            doc.length += entry.getValue();
+        }
+        docs.add(doc);
+        numbers.put(doc.id, number);
+        totalLength += doc.length;
+    }
+
+    private void remove(Integer number) {
+        if(number == null) {
+            return;
+        }
+        Doc doc = docs.get(number);
+        for(String term : frequencies(doc).keySet()) {
+            Postings postings = dictionary.get(term);
+            postings.live--;
+            if(postings.live == 0) {
+                dictionary.remove(term);
+            }
+        }
+        docs.set(number, null);
+        numbers.remove(doc.id);
+        totalLength -= doc.length;
+    }
+
+    /**
+     * Renumbers the live documents once they are outnumbered by deleted ones, so postings
+     * stop growing with every update.
+     */
+    private void compactIfNeeded() {
+        if(docs.size() < 1024 || docs.size() - numbers.size() <= numbers.size()) {
+            return;
+        }
+        List<Doc> live = new ArrayList<Doc>(numbers.size());
+        for(Doc doc : docs) {
+            if(doc != null) {
+                live.add(new Doc(doc.id, doc.firstname, doc.lastname, doc.messages));
+            }
+        }
+        dictionary.clear();
+        numbers.clear();
+        docs.clear();
+        totalLength = 0;
+        for(Doc doc : live) {
+            add(doc);
+        }
+    }
+
+    private static Map<String, Integer> frequencies(Doc doc) {
+        Map<String, Integer> frequencies = new HashMap<String, Integer>();
+        count(frequencies, doc.firstname);
+        count(frequencies, doc.lastname);
+        for(String message : doc.messages) {
+            count(frequencies, message);
+        }
+        return frequencies;
+    }
+
+    private static void count(Map<String, Integer> frequencies, String text) {
+        if(text != null) {
+            Matcher matcher = WORD.matcher(text);
+            while(matcher.find()) {
+                frequencies.merge(matcher.group().toLowerCase(Locale.ROOT), 1, Integer::sum);
+            }
+        }
+    }
+
+    private static JsonObject hit(Doc doc, float score, List<String> fields, Set<String> matched) {
+        JsonObject hit = JsonObject.create()
+            .put("index", "medical-condition")
+            .put("id", doc.id)
+            .put("score", (double) score)
+            .put("sort", JsonArray.from(Double.toString(score), doc.id));
+        JsonObject values = JsonObject.create();
+        for(String field : fields) {
+            if(FIRSTNAME.equals(field) && doc.firstname != null) {
+                values.put(field, doc.firstname);
+            } else if(LASTNAME.equals(field) && doc.lastname != null) {
+                values.put(field, doc.lastname);
+            } else if(MESSAGE.equals(field) && !doc.messages.isEmpty()) {
+                values.put(field, doc.messages.size() == 1 ? doc.messages.get(0) : JsonArray.from(new ArrayList<Object>(doc.messages)));
+            }
+        }
+        if(!values.isEmpty()) {
+            hit.put("fields", values);
+        }
+        if(matched != null) {
+            JsonArray fragments = JsonArray.create();
+            for(String message : doc.messages) {
+                String fragment = highlight(message, matched);
+                if(fragment != null) {
+                    fragments.add(fragment);
+                }
+            }
+            if(!fragments.isEmpty()) {
+                hit.put("fragments", JsonObject.create().put(MESSAGE, fragments));
+            }
+        }
+        return hit;
+    }
+
+    /**
+     * The message HTML-escaped with matched words in `<mark>` tags, cut to about 200
+     * characters from shortly before the first match, or null if nothing in it matched.
+     */
+    static String highlight(String message, Set<String> matched) {
+        Matcher matcher = WORD.matcher(message);
+        List<int[]> marks = new ArrayList<int[]>();
+        while(matcher.find()) {
+            if(matched.contains(matcher.group().toLowerCase(Locale.ROOT))) {
+                marks.add(new int[] { matcher.start(), matcher.end() });
+            }
+        }
+        if(marks.isEmpty()) {
+            return null;
+        }
+        int from = marks.get(0)[0] + FRAGMENT > message.length() ? Math.max(0, message.length() - FRAGMENT) : Math.max(0, marks.get(0)[0] - 20);
+        int to = Math.min(message.length(), from + FRAGMENT);
+        StringBuilder fragment = new StringBuilder();
+        if(from > 0) {
+            fragment.append('\u2026');
+        }
+        int position = from;
+        for(int[] mark : marks) {
+            if(mark[0] < from || mark[1] > to) {
+                continue;
+            }
+            escape(fragment, message, position, mark[0]);
+            fragment.append("<mark>");
+            escape(fragment, message, mark[0], mark[1]);
+            fragment.append("</mark>");
+            position = mark[1];
+        }
+        escape(fragment, message, position, to);
+        if(to < message.length()) {
+            fragment.append('\u2026');
+        }
+        return fragment.toString();
+    }
+
+    private static void escape(StringBuilder out, String text, int from, int to) {
+        for(int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            switch(c) {
+                case '&': out.append("&amp;"); break;
+                case '<': out.append("&lt;"); break;
+                case '>': out.append("&gt;"); break;
+                case '"': out.append("&quot;"); break;
+                case '\'': out.append("&#39;"); break;
+                default: out.append(c);
+            }
+        }
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int length = Math.min(a.length(), b.length());
+        int i = 0;
+        while(i < length && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    private static final class Doc {
+
+        private final String id;
+        private final String firstname;
+        private final String lastname;
+        private final List<String> messages;
+        private int length;
+
+        private Doc(String id, String firstname, String lastname, List<String> messages) {
+            this.id = id;
+            this.firstname = firstname;
+            this.lastname = lastname;
+            this.messages = messages;
+        }
+    }
+
+    /**
+     * Doc number gaps and term frequencies of one term as variable-byte integers, seven bits
+     * per byte with the high bit set on all but the last byte of a number.
+     */
+    static final class Postings {
+
+        private byte[] bytes = new byte[8];
+        private int size;
+        private int last = -1;
+        private int live;
+
+        void add(int doc, int frequency) {
+            write(doc - last);
+            write(frequency);
+            last = doc;
+            live++;
+        }
+
+        int bytes() {
+            return size;
+        }
+
+        Reader reader() {
+            return new Reader();
+        }
+
+        private void write(int value) {
+            if(size + 5 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            while((value & ~0x7F) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        final class Reader {
+
+            private int position;
+            int doc = -1;
+            int frequency;
+
+            boolean next() {
+                if(position >= size) {
+                    return false;
+                }
+                doc += read();
+                frequency = read();
+                return true;
+            }
+
+            private int read() {
+                int value = 0;
+                for(int shift = 0; ; shift += 7) {
+                    byte b = bytes[position++];
+                    value |= (b & 0x7F) << shift;
+                    if(b >= 0) {
+                        return value;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Levenshtein automaton for one term, with the states of the edit distance table: a state
+     * is the row of distances between the prefix read so far and every prefix of the term.
+     */
+    static final class Automaton {
+
+        private final String term;
+        private final int max;
+
+        Automaton(String term, int max) {
+            this.term = term;
+            this.max = max;
+        }
+
+        int[] start() {
+            int[] row = new int[term.length() + 1];
+            for(int i = 0; i < row.length; i++) {
+                row[i] = i;
+            }
+            return row;
+        }
+
+        int[] step(int[] row, char c) {
+            int[] next = new int[row.length];
+            next[0] = row[0] + 1;
+            for(int i = 1; i < row.length; i++) {
+                int substitute = row[i - 1] + (term.charAt(i - 1) == c ? 0 : 1);
+                next[i] = Math.min(substitute, Math.min(row[i] + 1, next[i - 1] + 1));
+            }
+            return next;
+        }
+
+        /**
+         * Whether some continuation of the prefix read so far can still be within `max` edits.
+         */
+        boolean canMatch(int[] row) {
+            for(int distance : row) {
+                if(distance <= max) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        int distance(int[] row) {
+            return row[row.length - 1];
+        }
+    }
+
+}
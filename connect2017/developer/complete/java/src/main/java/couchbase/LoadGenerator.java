@@ -0,0 +1,269 @@
+package couchbase;
+
+import com.couchbase.client.java.document.json.JsonObject;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load driver for the API. Requests are started on a fixed schedule at `rate` per
+ * second whether or not earlier ones have completed, and each latency is measured from the
+ * time the request was scheduled to start, so a stall in the service shows up in the
+ * percentiles instead of silently lowering the request rate (coordinated omission). The time
+ * from actually sending to completion is reported next to it as the service time.
+ *
+ * With `--setup=true` the synthetic data set from {@link Workload} is loaded through /import
+ * first. Runs against any reachable instance, e.g. one started locally:
+ *
+ * java -cp build/libs/java.jar couchbase.LoadGenerator --target=http://localhost:8080 --setup=true --rate=500 --duration=60
+ * mvn exec:java -Dexec.mainClass=couchbase.LoadGenerator -Dexec.args="--rate=500 --mix=patient:70,doctor:30"
+ */
+public class LoadGenerator {
+
+    private static final String DEFAULT_MIX = "patient:30,doctor:15,doctor.patients:10,doctor.appointments:10,"
+        + "patient.appointments:10,patient.notes:15,appointment.create:5,patients.condition:5";
+
+    private final String target;
+
+    private final Workload workload;
+
+    private final Random random;
+
+    private final List<String> endpoints = new ArrayList<String>();
+
+    private final double[] cumulative;
+
+    private final Map<String, Stats> stats = new TreeMap<String, Stats>();
+
+    private int created;
+
+    LoadGenerator(String target, Workload workload, long seed, String mix) {
+        this.target = target;
+        this.workload = workload;
+        this.random = new Random(seed);
+        double total = 0;
+        List<Double> weights = new ArrayList<Double>();
+        for(String entry : mix.split(",")) {
+            String[] parts = entry.trim().split(":");
+            endpoints.add(parts[0]);
+            total += parts.length > 1 ? Double.parseDouble(parts[1]) : 1;
+            weights.add(total);
+            stats.put(parts[0], new Stats());
+        }
+        cumulative = new double[weights.size()];
+        for(int i = 0; i < cumulative.length; i++) {
+            cumulative[i] = weights.get(i) / total;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for(String arg : args) {
+            int split = arg.indexOf('=');
+            if(arg.startsWith("--") && split > 2) {
+                options.put(arg.substring(2, split), arg.substring(split + 1));
+            }
+        }
+        Workload workload = new Workload(
+            Integer.parseInt(options.getOrDefault("doctors", "200")),
+            Integer.parseInt(options.getOrDefault("patients", "10000")),
+            Integer.parseInt(options.getOrDefault("appointments", "20000")),
+            System.currentTimeMillis() / 1000L);
+        LoadGenerator generator = new LoadGenerator(
+            options.getOrDefault("target", "http://localhost:8080"),
+            workload,
+            Long.parseLong(options.getOrDefault("seed", "42")),
+            options.getOrDefault("mix", DEFAULT_MIX));
+        if(Boolean.parseBoolean(options.getOrDefault("setup", "false"))) {
+            for(String type : Arrays.asList("doctor", "patient", "appointment")) {
+                System.out.println(type + ": " + generator.load(type));
+            }
+        }
+        generator.run(
+            Double.parseDouble(options.getOrDefault("rate", "200")),
+            TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("warmup", "10"))),
+            TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "60"))),
+            Integer.parseInt(options.getOrDefault("threads", "64")));
+        generator.report(System.out);
+        if(options.containsKey("output")) {
+            generator.write(new File(options.get("output")));
+        }
+    }
+
+    /**
+     * Streams all records of one type to /import and returns its summary line.
+     */
+    String load(String type) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(target + "/import?type=" + type).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setChunkedStreamingMode(64 * 1024);
+        connection.setRequestProperty("Content-Type", "application/x-ndjson");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8))) {
+            workload.write(type, writer);
+        }
+        String last = null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+            for(String line = reader.readLine(); line != null; line = reader.readLine()) {
+                last = line;
+            }
+        }
+        return last;
+    }
+
+    void run(double rate, long warmup, long duration, int threads) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime();
+        long measureFrom = start + warmup;
+        long end = measureFrom + duration;
+        for(long i = 0; ; i++) {
+            long intended = start + i * interval;
+            if(intended >= end) {
+                break;
+            }
+            for(long now = System.nanoTime(); now < intended; now = System.nanoTime()) {
+                LockSupport.parkNanos(intended - now);
+            }
+            String endpoint = nextEndpoint();
+            Request request = request(endpoint);
+            Stats endpointStats = stats.get(endpoint);
+            executor.execute(() -> {
+                long sent = System.nanoTime();
+                boolean success = request.send(target);
+                long done = System.nanoTime();
+                if(intended >= measureFrom) {
+                    endpointStats.record(done - intended, done - sent, success);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    void report(PrintStream out) {
+        out.printf("%-22s %8s %7s %9s %9s %9s %9s %9s%n", "endpoint (ms)", "count", "errors", "p50", "p90", "p99", "p99.9", "max");
+        for(Map.Entry<String, Stats> entry : stats.entrySet()) {
+            Stats endpoint = entry.getValue();
+            line(out, entry.getKey(), endpoint.latency, endpoint.errors.sum());
+            line(out, "  service time", endpoint.service, endpoint.errors.sum());
+        }
+    }
+
+    /**
+     * Writes the full percentile distribution of every endpoint as `<endpoint>.hgrm`, which
+     * the HdrHistogram plotter reads.
+     */
+    void write(File directory) throws IOException {
+        directory.mkdirs();
+        for(Map.Entry<String, Stats> entry : stats.entrySet()) {
+            try (PrintStream out = new PrintStream(new File(directory, entry.getKey() + ".hgrm"), "UTF-8")) {
+                entry.getValue().latency.outputPercentileDistribution(out, 1e6);
+            }
+        }
+    }
+
+    private static void line(PrintStream out, String name, Histogram histogram, long errors) {
+        out.printf("%-22s %8d %7d %9.2f %9.2f %9.2f %9.2f %9.2f%n", name, histogram.getTotalCount(), errors,
+            histogram.getValueAtPercentile(50) / 1e6, histogram.getValueAtPercentile(90) / 1e6,
+            histogram.getValueAtPercentile(99) / 1e6, histogram.getValueAtPercentile(99.9) / 1e6,
+            histogram.getMaxValue() / 1e6);
+    }
+
+    private String nextEndpoint() {
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        return endpoints.get(Math.min(index < 0 ? -index - 1 : index, endpoints.size() - 1));
+    }
+
+    Request request(String endpoint) {
+        switch(endpoint) {
+            case "patient":
+                return new Request("GET", "/patient/" + Workload.patientId(workload.nextPatient(random)), null);
+            case "doctor":
+                return new Request("GET", "/doctor/" + Workload.doctorId(workload.nextDoctor(random)), null);
+            case "doctor.patients":
+                return new Request("GET", "/doctor/patients/" + Workload.doctorId(workload.nextDoctor(random)), null);
+            case "doctor.appointments":
+                return new Request("GET", "/doctor/appointments/" + Workload.doctorId(workload.nextDoctor(random)), null);
+            case "patient.appointments":
+                return new Request("GET", "/patient/appointments/" + Workload.patientId(workload.nextPatient(random)), null);
+            case "patient.notes": {
+                int patient = workload.nextPatient(random);
+                JsonObject note = workload.note(random, workload.primaryDoctor(patient), System.currentTimeMillis() / 1000L);
+                return new Request("PUT", "/patient/notes/" + Workload.patientId(patient), note.toString());
+            }
+            case "appointment.create": {
+                JsonObject appointment = workload.appointment(workload.appointments + created++);
+                appointment.removeKey("id");
+                return new Request("POST", "/appointment", appointment.toString());
+            }
+            case "patients.condition":
+                return new Request("POST", "/patients/condition", JsonObject.create()
+                    .put("search", Workload.CONDITIONS[random.nextInt(Workload.CONDITIONS.length)]).toString());
+            default:
+                throw new IllegalArgumentException("Unknown endpoint in mix: " + endpoint);
+        }
+    }
+
+    static final class Request {
+
+        final String method;
+        final String path;
+        final String body;
+
+        Request(String method, String path, String body) {
+            this.method = method;
+            this.path = path;
+            this.body = body;
+        }
+
+        boolean send(String target) {
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL(target + path).openConnection();
+                connection.setRequestMethod(method);
+                if(body != null) {
+                    connection.setDoOutput(true);
+                    connection.setRequestProperty("Content-Type", "application/json");
+                    try (OutputStream out = connection.getOutputStream()) {
+                        out.write(body.getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+                int status = connection.getResponseCode();
+                try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                    if(in != null) {
+                        byte[] buffer = new byte[8192];
+                        while(in.read(buffer) >= 0) { }
+                    }
+                }
+                return status < 400;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    private static final class Stats {
+
+        private final Histogram latency = new ConcurrentHistogram(3);
+        private final Histogram service = new ConcurrentHistogram(3);
+        private final LongAdder errors = new LongAdder();
+
+        private void record(long latencyNanos, long serviceNanos, boolean success) {
+            latency.recordValue(latencyNanos);
+            service.recordValue(serviceNanos);
+            if(!success) {
+                errors.increment();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+package couchbase;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import java.util.*;
+
+/**
+ * One {@link ConcurrencyLimiter} per endpoint group, so a slow backend only sheds the
+ * endpoints that depend on it: with N1QL slowing down the `n1ql` group's limit shrinks and its
+ * excess requests are rejected right away, while the `kv` group keeps its own limit. Groups
+ * are listed in `limits.groups` and their endpoints in `limits.group.<group>`; endpoints in no
+ * group are only bounded by `async.max-in-flight`.
+ */
+@Component
+public class LoadShedder {
+
+    private final boolean enabled;
+
+    private final long retryAfter;
+
+    private final Metrics metrics;
+
+    private final Map<String, String> groups = new HashMap<String, String>();
+
+    private final Map<String, ConcurrencyLimiter> limiters = new LinkedHashMap<String, ConcurrencyLimiter>();
+
+    @Autowired
+    public LoadShedder(Environment environment, Metrics metrics,
+                       @Value("${limits.enabled:true}") boolean enabled,
+                       @Value("${limits.groups:kv,n1ql,fts,write}") String[] groups,
+                       @Value("${limits.retry-after:1}") long retryAfter) {
+        this.enabled = enabled;
+        this.retryAfter = retryAfter;
+        this.metrics = metrics;
+        for(String group : groups) {
+            ConcurrencyLimiter limiter = new ConcurrencyLimiter(
+                limit(environment, "initial", group, 20),
+                limit(environment, "min", group, 2),
+                limit(environment, "max", group, 500),
+                environment.getProperty("limits.tolerance." + group, Double.class,
+                    environment.getProperty("limits.tolerance", Double.class, 1.5)));
+            limiters.put(group, limiter);
+            for(String endpoint : environment.getProperty("limits.group." + group, String[].class, new String[0])) {
+                this.groups.put(endpoint.trim(), group);
+            }
+            metrics.gauge("workshop_concurrency_limit", "group=\"" + group + "\"", limiter::limit);
+            metrics.gauge("workshop_concurrency_in_flight", "group=\"" + group + "\"", limiter::inFlight);
+        }
+    }
+
+    /**
+     * Takes a permit from the endpoint's group, or returns false if the group is at its limit.
+     * Endpoints in no group always get one.
+     */
+    public boolean tryAcquire(String endpoint) {
+        ConcurrencyLimiter limiter = limiter(endpoint);
+        if(limiter == null || limiter.tryAcquire()) {
+            return true;
+        }
+        metrics.shed(groups.get(endpoint));
+        return false;
+    }
+
+    /**
+     * Returns the permit taken by {@link #tryAcquire(String)} and feeds the request's latency
+     * back into the group's limit.
+     */
+    public void release(String endpoint, long nanos) {
+        ConcurrencyLimiter limiter = limiter(endpoint);
+        if(limiter != null) {
+            limiter.release(nanos);
+        }
+    }
+
+    public void cancel(String endpoint) {
+        ConcurrencyLimiter limiter = limiter(endpoint);
+        if(limiter != null) {
+            limiter.cancel();
+        }
+    }
+
+    /**
+     * Seconds a rejected client is asked to wait before retrying.
+     */
+    public long retryAfter() {
+        return retryAfter;
+    }
+
+    private ConcurrencyLimiter limiter(String endpoint) {
+        String group = enabled ? groups.get(endpoint) : null;
+        return group != null ? limiters.get(group) : null;
+    }
+
+    private static int limit(Environment environment, String kind, String group, int fallback) {
+        return environment.getProperty("limits." + kind + "." + group, Integer.class,
+            environment.getProperty("limits." + kind, Integer.class, fallback));
+    }
+
+}
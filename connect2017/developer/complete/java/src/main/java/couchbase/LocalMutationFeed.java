@@ -0,0 +1,26 @@
+package couchbase;
+
+import org.springframework.stereotype.Component;
+import rx.Observable;
+import rx.subjects.PublishSubject;
+import rx.subjects.Subject;
+
+/**
+ * Feed that only sees the writes made through this process.
+ */
+@Component
+public class LocalMutationFeed implements MutationFeed {
+
+    private final Subject<Mutation, Mutation> subject = PublishSubject.<Mutation>create().toSerialized();
+
+    @Override
+    public void publish(Mutation mutation) {
+        subject.onNext(mutation);
+    }
+
+    @Override
+    public Observable<Mutation> mutations() {
+        return subject;
+    }
+
+}
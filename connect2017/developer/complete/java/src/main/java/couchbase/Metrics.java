@@ -0,0 +1,245 @@
+package couchbase;
+
+import com.couchbase.client.java.query.N1qlMetrics;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.stereotype.Component;
+import rx.Observable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Latency histograms and counters for the API, rendered in the Prometheus text format.
+ *
+ * Quantiles and maxima cover the last minute, in six intervals of ten seconds that are
+ * rotated when scraped, so a regression shows up right away instead of being averaged into
+ * everything since startup; sums, counts and errors are totals since startup.
+ *
+ * Requests are timed per endpoint, backend calls per backend (kv, n1ql, fts, json) and
+ * operation, and the `metrics` block the query service returns with every N1QL result is
+ * recorded per statement.
+ */
+@Component
+public class Metrics {
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private static final int INTERVALS = 6;
+
+    private static final Pattern GO_DURATION = Pattern.compile("([0-9]*\\.?[0-9]+)(ns|us|\\u00b5s|ms|s|m|h)");
+
+    private final Map<String, Timer> requests = new ConcurrentHashMap<String, Timer>();
+
+    private final Map<String, Timer> backends = new ConcurrentHashMap<String, Timer>();
+
+    private final Map<String, Timer> serverElapsed = new ConcurrentHashMap<String, Timer>();
+
+    private final Map<String, Timer> serverExecution = new ConcurrentHashMap<String, Timer>();
+
+    private final Map<String, LongAdder> resultCount = new ConcurrentHashMap<String, LongAdder>();
+
+    private final Map<String, LongAdder> resultSize = new ConcurrentHashMap<String, LongAdder>();
+
+    private final Map<String, LongAdder> shed = new ConcurrentHashMap<String, LongAdder>();
+
+    private final Map<String, LongAdder> rejected = new ConcurrentHashMap<String, LongAdder>();
+
+    private final Map<String, Map<String, IntSupplier>> gauges = new ConcurrentHashMap<String, Map<String, IntSupplier>>();
+
+    public void request(String endpoint, long nanos, boolean success) {
+        timer(requests, "endpoint=\"" + endpoint + "\"").record(nanos, success);
+    }
+
+    public void backend(String backend, String operation, long nanos, boolean success) {
+        timer(backends, "backend=\"" + backend + "\",operation=\"" + operation + "\"").record(nanos, success);
+    }
+
+    public <T> Observable<T> timed(String backend, String operation, Observable<T> source) {
+        return Observable.defer(() -> {
+            long start = System.nanoTime();
+            return source
+                .doOnCompleted(() -> backend(backend, operation, System.nanoTime() - start, true))
+                .doOnError(e -> backend(backend, operation, System.nanoTime() - start, false));
+        });
+    }
+
+    public void n1ql(String statement, N1qlMetrics info) {
+        String labels = "statement=\"" + statement + "\"";
+        timer(serverElapsed, labels).record(parseDuration(info.elapsedTime()), true);
+        timer(serverExecution, labels).record(parseDuration(info.executionTime()), info.errorCount() == 0);
+        resultCount.computeIfAbsent(labels, l -> new LongAdder()).add(info.resultCount());
+        resultSize.computeIfAbsent(labels, l -> new LongAdder()).add(info.resultSize());
+    }
+
+    public void shed(String group) {
+        shed.computeIfAbsent("group=\"" + group + "\"", l -> new LongAdder()).increment();
+    }
+
+    /**
+     * Counts a request answered with 503 before it ran. Rejections are kept out of the latency
+     * summaries, where their zero latency would hide how slow the admitted requests are.
+     */
+    public void rejected(String endpoint) {
+        rejected.computeIfAbsent("endpoint=\"" + endpoint + "\"", l -> new LongAdder()).increment();
+    }
+
+    /**
+     * Registers a value that is read on every scrape.
+     */
+    public void gauge(String name, String labels, IntSupplier value) {
+        gauges.computeIfAbsent(name, n -> new ConcurrentHashMap<String, IntSupplier>()).put(labels, value);
+    }
+
+    public String scrape() {
+        return scrape(System.nanoTime());
+    }
+
+    String scrape(long now) {
+        StringBuilder out = new StringBuilder();
+        summary(out, "workshop_request_seconds", "Request latency per endpoint", requests, now);
+        summary(out, "workshop_backend_seconds", "Backend call latency per backend and operation", backends, now);
+        summary(out, "workshop_n1ql_elapsed_seconds", "Server-side N1QL elapsed time per statement", serverElapsed, now);
+        summary(out, "workshop_n1ql_execution_seconds", "Server-side N1QL execution time per statement", serverExecution, now);
+        counter(out, "workshop_n1ql_result_count_total", "Rows returned per statement", resultCount);
+        counter(out, "workshop_n1ql_result_bytes_total", "Result bytes returned per statement", resultSize);
+        counter(out, "workshop_requests_shed_total", "Requests rejected by the concurrency limit per endpoint group", shed);
+        counter(out, "workshop_requests_rejected_total", "Requests rejected with 503 per endpoint", rejected);
+        for(Map.Entry<String, Map<String, IntSupplier>> gauge : new TreeMap<String, Map<String, IntSupplier>>(gauges).entrySet()) {
+            out.append("# TYPE ").append(gauge.getKey()).append(" gauge\n");
+            for(Map.Entry<String, IntSupplier> entry : new TreeMap<String, IntSupplier>(gauge.getValue()).entrySet()) {
+                out.append(gauge.getKey()).append('{').append(entry.getKey()).append("} ").append(entry.getValue().getAsInt()).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Parses the Go-style durations reported by the query service, e.g. "1.5ms" or "1m2.3s",
+     * into nanoseconds. Anything unparseable counts as zero.
+     */
+    static long parseDuration(String duration) {
+        if(duration == null) {
+            return 0;
+        }
+        Matcher matcher = GO_DURATION.matcher(duration);
+        double nanos = 0;
+        while(matcher.find()) {
+            double value = Double.parseDouble(matcher.group(1));
+            switch(matcher.group(2)) {
+                case "ns": nanos += value; break;
+                case "us":
+                case "\u00b5s": nanos += value * 1e3; break;
+                case "ms": nanos += value * 1e6; break;
+                case "s": nanos += value * 1e9; break;
+                case "m": nanos += value * 6e10; break;
+                case "h": nanos += value * 3.6e12; break;
+            }
+        }
+        return (long) nanos;
+    }
+
+    private static Timer timer(Map<String, Timer> timers, String labels) {
+        return timers.computeIfAbsent(labels, l -> new Timer());
+    }
+
+    /**
+     * Renders the timers as a summary, plus a `_max` gauge and an `_errors_total` counter
+     * family, since a summary family only has quantiles, `_sum` and `_count`.
+     */
+    private static void summary(StringBuilder out, String name, String help, Map<String, Timer> timers, long now) {
+        Map<String, Timer> sorted = new TreeMap<String, Timer>(timers);
+        Map<String, Histogram> windows = new HashMap<String, Histogram>();
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" summary\n");
+        for(Map.Entry<String, Timer> entry : sorted.entrySet()) {
+            String labels = entry.getKey();
+            Timer timer = entry.getValue();
+            Histogram window = timer.window(now);
+            windows.put(labels, window);
+            for(double quantile : QUANTILES) {
+                out.append(name).append('{').append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(window.getValueAtPercentile(quantile * 100))).append('\n');
+            }
+            out.append(name).append("_sum{").append(labels).append("} ").append(seconds(timer.sum.sum())).append('\n');
+            out.append(name).append("_count{").append(labels).append("} ").append(timer.count.sum()).append('\n');
+        }
+        out.append("# HELP ").append(name).append("_max ").append(help).append(", maximum over the last minute\n");
+        out.append("# TYPE ").append(name).append("_max gauge\n");
+        for(Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(windows).entrySet()) {
+            out.append(name).append("_max{").append(entry.getKey()).append("} ").append(seconds(entry.getValue().getMaxValue())).append('\n');
+        }
+        out.append("# HELP ").append(name).append("_errors_total ").append(help).append(", failed calls\n");
+        out.append("# TYPE ").append(name).append("_errors_total counter\n");
+        for(Map.Entry<String, Timer> entry : sorted.entrySet()) {
+            out.append(name).append("_errors_total{").append(entry.getKey()).append("} ").append(entry.getValue().errors.sum()).append('\n');
+        }
+    }
+
+    private static void counter(StringBuilder out, String name, String help, Map<String, LongAdder> counters) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        for(Map.Entry<String, LongAdder> entry : new TreeMap<String, LongAdder>(counters).entrySet()) {
+            out.append(name).append('{').append(entry.getKey()).append("} ").append(entry.getValue().sum()).append('\n');
+        }
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    private static final class Timer {
+
+        private final Recorder recorder = new Recorder(3);
+        private final Histogram[] intervals = new Histogram[INTERVALS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private long rotated = System.nanoTime();
+        private int current;
+
+        private void record(long nanos, boolean success) {
+            recorder.recordValue(Math.max(0, nanos));
+            count.increment();
+            sum.add(nanos);
+            if(!success) {
+                errors.increment();
+            }
+        }
+
+        /**
+         * The values of the last INTERVALS intervals. Values recorded since the previous
+         * scrape go into the current interval, so none expire before they were scraped once.
+         */
+        private synchronized Histogram window(long now) {
+            if(now - rotated >= INTERVALS * INTERVAL_NANOS) {
+                Arrays.fill(intervals, null);
+                rotated = now;
+            }
+            for(; now - rotated >= INTERVAL_NANOS; rotated += INTERVAL_NANOS) {
+                current = (current + 1) % INTERVALS;
+                intervals[current] = null;
+            }
+            Histogram recent = recorder.getIntervalHistogram();
+            if(intervals[current] == null) {
+                intervals[current] = recent;
+            } else {
+                intervals[current].add(recent);
+            }
+            Histogram window = new Histogram(3);
+            for(Histogram interval : intervals) {
+                if(interval != null) {
+                    window.add(interval);
+                }
+            }
+            return window;
+        }
+    }
+
+}
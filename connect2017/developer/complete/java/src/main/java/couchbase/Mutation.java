@@ -0,0 +1,50 @@
+package couchbase;
+
+import com.couchbase.client.java.document.json.JsonObject;
+
+/**
+ * Value object for a single document change published on a {@link MutationFeed}.
+ */
+public class Mutation {
+
+    public enum Type { UPSERT, DELETE }
+
+    private final Type type;
+    private final String id;
+    private final JsonObject content;
+
+    private Mutation(Type type, String id, JsonObject content) {
+        this.type = type;
+        this.id = id;
+        this.content = content;
+    }
+
+    public static Mutation upsert(String id, JsonObject content) {
+        return new Mutation(Type.UPSERT, id, content);
+    }
+
+    public static Mutation delete(String id) {
+        return new Mutation(Type.DELETE, id, null);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public JsonObject getContent() {
+        return content;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("Mutation{");
+        sb.append("type=").append(type);
+        sb.append(", id='").append(id).append('\'');
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,16 @@
+package couchbase;
+
+import rx.Observable;
+
+/**
+ * Source of document changes for the in-process indexes. The API publishes its own writes;
+ * an implementation backed by a server-side change stream may ignore them and emit what it
+ * receives instead.
+ */
+public interface MutationFeed {
+
+    void publish(Mutation mutation);
+
+    Observable<Mutation> mutations();
+
+}
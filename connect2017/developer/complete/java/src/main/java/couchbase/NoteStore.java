@@ -0,0 +1,191 @@
+package couchbase;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.subdoc.DocumentFragment;
+import com.couchbase.client.java.subdoc.SubdocOptionsBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import rx.Observable;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+
+/**
+ * Where patient notes live. In the default `inline` mode they are appended to the patient
+ * document, as they always have been. In `bucketed` mode each note goes into a
+ * `notes::<patient>::<yyyyMM>` document and the patient only keeps a `noteSummary` with the
+ * note count, the latest note and the months that have notes, so the patient document stays
+ * small no matter how long the stay.
+ *
+ * Inline appends to the same patient are combined while one is in flight, see
+ * {@link AppendCombiner}, unless `notes.combine.enabled` is false.
+ */
+@Component
+public class NoteStore {
+
+    private static final DateTimeFormatter MONTH = DateTimeFormatter.ofPattern("yyyyMM").withZone(ZoneOffset.UTC);
+
+    private final Bucket bucket;
+
+    private final Metrics metrics;
+
+    private final boolean bucketed;
+
+    private final AppendCombiner combiner;
+
+    @Autowired
+    public NoteStore(Bucket bucket, Metrics metrics, @Value("${notes.storage:inline}") String storage,
+                     @Value("${notes.combine.enabled:true}") boolean combine, @Value("${notes.combine.max-batch:16}") int maxBatch) {
+        this.bucket = bucket;
+        this.metrics = metrics;
+        this.bucketed = "bucketed".equals(storage);
+        this.combiner = combine ? new AppendCombiner(bucket, metrics, "notes", maxBatch) : null;
+    }
+
+    public boolean isBucketed() {
+        return bucketed;
+    }
+
+    public static String key(String patientId, String month) {
+        return "notes::" + patientId + "::" + month;
+    }
+
+    public Observable<JsonObject> append(String patientId, JsonObject note) {
+        SubdocOptionsBuilder builder = new SubdocOptionsBuilder();
+        builder.createParents(true);
+        if(!bucketed && combiner != null) {
+            return combiner.append(patientId, note);
+        } else if(!bucketed) {
+            return metrics.timed("kv", "mutateIn", bucket.async().mutateIn(patientId).arrayAppend("notes", note, builder).execute())
+                .map(result -> note);
+        }
+        String month = MONTH.format(Instant.ofEpochSecond(note.getLong("timestamp")));
+        return metrics.timed("kv", "mutateIn", bucket.async().mutateIn(patientId)
+            .counter("noteSummary.count", 1L, builder)
+            .upsert("noteSummary.last", note, builder)
+            .arrayAddUnique("noteSummary.months", month, builder)
+            .execute())
+            .flatMap(summary -> metrics.timed("kv", "mutateIn", bucket.async().mutateIn(key(patientId, month))
+                .upsertDocument(true)
+                .upsert("type", "notes")
+                .upsert("patient", patientId)
+                .upsert("month", month)
+                .arrayAppend("notes", note, builder)
+                .execute()))
+            .map(result -> note);
+    }
+
+    /**
+     * Newest notes first, starting at `before` (unix seconds) after skipping the first `skip`
+     * notes of that second; notes of the same second come in the order they were added. The
+     * returned `before` and `skip` are the cursor for the next page, with `before` null when
+     * there are no more notes. Since timestamps only have seconds, a page can end in the
+     * middle of a second, which the skip count picks up from.
+     */
+    public Observable<Map<String, Object>> page(String patientId, long before, int skip, int limit) {
+        Observable<JsonObject> notes;
+        if(!bucketed) {
+            notes = metrics.timed("kv", "lookupIn", bucket.async().lookupIn(patientId).get("notes").execute())
+                .concatMap(fragment -> newestFirst(fragment, "notes"));
+        } else {
+            String newest = MONTH.format(Instant.ofEpochSecond(before));
+            notes = metrics.timed("kv", "lookupIn", bucket.async().lookupIn(patientId).get("noteSummary.months").execute())
+                .concatMap(fragment -> Observable.from(months(fragment, newest)))
+                .concatMap(month -> metrics.timed("kv", "lookupIn", bucket.async().lookupIn(key(patientId, month)).get("notes").execute()))
+                .concatMap(fragment -> newestFirst(fragment, "notes"));
+        }
+        return Observable.defer(() -> {
+            int[] skipped = { 0 };
+            return notes
+                .filter(note -> note.getLong("timestamp") < before || note.getLong("timestamp") == before && skipped[0]++ >= skip)
+                .take(limit)
+                .toList();
+        })
+            .map(page -> {
+                List<Map<String, Object>> content = new ArrayList<Map<String, Object>>();
+                for(JsonObject note : page) {
+                    content.add(note.toMap());
+                }
+                Map<String, Object> result = new LinkedHashMap<String, Object>();
+                result.put("notes", content);
+                if(page.size() == limit) {
+                    long last = page.get(page.size() - 1).getLong("timestamp");
+                    int sameSecond = last == before ? skip : 0;
+                    for(JsonObject note : page) {
+                        if(note.getLong("timestamp") == last) {
+                            sameSecond++;
+                        }
+                    }
+                    result.put("before", last);
+                    result.put("skip", sameSecond);
+                } else {
+                    result.put("before", null);
+                    result.put("skip", null);
+                }
+                return result;
+            });
+    }
+
+    /**
+     * The newest `count` notes in the order they were added. Inline notes are read by index
+     * after a lookup of the array size, at most {@link Projection#MAX_PATHS} per lookupIn, so
+     * only those notes are transferred; a note appended in between shifts the window by one.
+     */
+    public Observable<List<Object>> last(String patientId, int count) {
+        if(bucketed) {
+            return page(patientId, System.currentTimeMillis() / 1000L + 1, 0, count)
+                .map(page -> {
+                    List<Object> notes = new ArrayList<Object>((List<?>) page.get("notes"));
+                    Collections.reverse(notes);
+                    return notes;
+                });
+        }
+        return metrics.timed("kv", "lookupIn", bucket.async().lookupIn(patientId).getCount("notes").execute())
+            .concatMap(fragment -> {
+                int size = fragment.exists("notes") ? ((Number) fragment.content("notes")).intValue() : 0;
+                List<List<String>> chunks = new ArrayList<List<String>>();
+                for(int index = Math.max(0, size - count); index < size; index++) {
+                    if(chunks.isEmpty() || chunks.get(chunks.size() - 1).size() == Projection.MAX_PATHS) {
+                        chunks.add(new ArrayList<String>());
+                    }
+                    chunks.get(chunks.size() - 1).add("notes[" + index + "]");
+                }
+                return Observable.from(chunks)
+                    .concatMapEager(paths -> metrics.timed("kv", "lookupIn", bucket.async().lookupIn(patientId).get(paths.toArray(new String[paths.size()])).execute())
+                        .concatMap(notes -> Observable.from(paths)
+                            .filter(notes::exists)
+                            .map(path -> Projection.plain(notes.content(path)))));
+            })
+            .toList();
+    }
+
+    private static List<String> months(DocumentFragment<?> fragment, String newest) {
+        List<String> months = new ArrayList<String>();
+        if(fragment.exists("noteSummary.months")) {
+            for(Object month : fragment.content("noteSummary.months", JsonArray.class)) {
+                if(((String) month).compareTo(newest) <= 0) {
+                    months.add((String) month);
+                }
+            }
+        }
+        Collections.sort(months, Collections.reverseOrder());
+        return months;
+    }
+
+    private static Observable<JsonObject> newestFirst(DocumentFragment<?> fragment, String path) {
+        if(!fragment.exists(path)) {
+            return Observable.empty();
+        }
+        List<JsonObject> notes = new ArrayList<JsonObject>();
+        for(Object note : fragment.content(path, JsonArray.class)) {
+            notes.add((JsonObject) note);
+        }
+        Collections.sort(notes, (a, b) -> Long.compare(b.getLong("timestamp"), a.getLong("timestamp")));
+        return Observable.from(notes);
+    }
+
+}
@@ -0,0 +1,112 @@
+package couchbase;
+
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import rx.Observable;
+import javax.annotation.PostConstruct;
+import java.util.*;
+
+/**
+ * Keeps an {@link InvertedIndex} of every patient's names and notes for the `embedded`
+ * search backend. Like {@link AppointmentIndex} it follows the mutation feed for new and
+ * imported patients and then loads the existing ones, from the notes documents as well in
+ * `bucketed` note storage; new notes are added by {@link ConditionSearch#noteAdded}. Until
+ * the load completes {@link #ready()} is false and searches go to FTS.
+ */
+@Component
+public class PatientSearchIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PatientSearchIndex.class);
+
+    private final InvertedIndex index = new InvertedIndex();
+
+    private final StatementRegistry statements;
+
+    private final NoteStore noteStore;
+
+    private final boolean enabled;
+
+    private volatile boolean ready;
+
+    @Autowired
+    public PatientSearchIndex(MutationFeed feed, StatementRegistry statements, NoteStore noteStore,
+                              @Value("${search.backend:fts}") String backend) {
+        this.statements = statements;
+        this.noteStore = noteStore;
+        this.enabled = "embedded".equals(backend);
+        if(enabled) {
+            feed.mutations().subscribe(this::apply);
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        if(enabled) {
+            rows("patients.search")
+                .doOnNext(patient -> patient(patient.getString("id"), patient))
+                .concatWith(noteStore.isBucketed()
+                    ? rows("notes.search").doOnNext(notes -> index.addNotes(notes.getString("patient"), messages(notes.getArray("notes"))))
+                    : Observable.<JsonObject>empty())
+                .subscribe(
+                    row -> {},
+                    e -> LOGGER.warn("Could not build the patient search index, falling back to FTS", e),
+                    () -> {
+                        ready = true;
+                        LOGGER.info("Patient search index ready with {} patients", index.size());
+                    });
+        }
+    }
+
+    public boolean ready() {
+        return ready;
+    }
+
+    public JsonObject search(String text, Integer fuzziness, List<String> fields, boolean highlight, int size, int from, JsonArray after) {
+        return index.search(text, fuzziness == null ? 0 : fuzziness, fields, highlight, size, from, after);
+    }
+
+    public void noteAdded(String patientId, String message) {
+        if(enabled) {
+            index.addNotes(patientId, Collections.singletonList(message));
+        }
+    }
+
+    private void apply(Mutation mutation) {
+        if(mutation.getType() == Mutation.Type.DELETE) {
+            index.delete(mutation.getId());
+        } else if(mutation.getContent() != null && "patient".equals(mutation.getContent().getString("type"))) {
+            patient(mutation.getId(), mutation.getContent());
+        }
+    }
+
+    private void patient(String id, JsonObject patient) {
+        JsonObject information = patient.getObject("information");
+        index.put(id,
+            information == null ? null : information.getString("firstname"),
+            information == null ? null : information.getString("lastname"),
+            messages(patient.getArray("notes")));
+    }
+
+    private static List<String> messages(JsonArray notes) {
+        List<String> messages = new ArrayList<String>();
+        for(int i = 0; notes != null && i < notes.size(); i++) {
+            Object note = notes.get(i);
+            if(note instanceof JsonObject && ((JsonObject) note).getString("message") != null) {
+                messages.add(((JsonObject) note).getString("message"));
+            }
+        }
+        return messages;
+    }
+
+    private Observable<JsonObject> rows(String statement) {
+        return statements.query(statement)
+            .flatMap(result -> result.rows().map(row -> row.value())
+                .concatWith(result.errors().flatMap(error -> Observable.<JsonObject>error(new IllegalStateException("Query Error: " + error)))));
+    }
+
+}
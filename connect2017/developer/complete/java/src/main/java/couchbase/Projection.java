@@ -0,0 +1,105 @@
+package couchbase;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.couchbase.client.java.subdoc.DocumentFragment;
+import org.springframework.http.HttpStatus;
+import rx.Observable;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Field projections for reads by id. The comma separated `fields` request parameter names
+ * dotted paths into the document, which are fetched with a single lookupIn and reassembled
+ * into the nested objects they came from, so `fields=information.lastname,department`
+ * returns `{"information":{"lastname":...},"department":...}`.
+ */
+final class Projection {
+
+    /**
+     * Number of paths a single subdocument lookup accepts.
+     */
+    static final int MAX_PATHS = 16;
+
+    private static final Pattern PATH = Pattern.compile("[A-Za-z_][\\w-]*(\\.[A-Za-z_][\\w-]*)*");
+
+    private Projection() {}
+
+    /**
+     * Parses the `fields` parameter, or throws IllegalArgumentException naming the path that
+     * is not a plain dotted path.
+     */
+    static List<String> paths(String fields) {
+        if(fields == null || fields.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        Set<String> paths = new LinkedHashSet<String>();
+        for(String field : fields.split(",")) {
+            String path = field.trim();
+            if(!PATH.matcher(path).matches()) {
+                throw new IllegalArgumentException("The field `" + path + "` is not a dotted path");
+            }
+            paths.add(path);
+        }
+        return new ArrayList<String>(paths);
+    }
+
+    /**
+     * Reads the paths of the document with one lookupIn and adds the list `notes` emits, if
+     * any, as its `notes`. A missing document is answered with 404.
+     */
+    static Observable<Object> read(Bucket bucket, Metrics metrics, String id, List<String> paths, Observable<List<Object>> notes) {
+        Observable<Map<String, Object>> projected = paths.isEmpty()
+            ? Observable.just(new LinkedHashMap<String, Object>())
+            : metrics.timed("kv", "lookupIn", bucket.async().lookupIn(id).get(paths.toArray(new String[paths.size()])).execute())
+                .map(fragment -> merge(fragment, paths));
+        return Observable.zip(projected, notes, (document, last) -> {
+                if(last != null) {
+                    document.put("notes", last);
+                }
+                return (Object) document;
+            })
+            .onErrorResumeNext(e -> e instanceof DocumentDoesNotExistException ? Observable.just(notFound(id)) : Observable.error(e));
+    }
+
+    static Object notFound(String id) {
+        return AsyncSupport.error("No document with id `" + id + "`", HttpStatus.NOT_FOUND);
+    }
+
+    /**
+     * The paths found in the fragment, nested as in the document. Missing paths are left out.
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> merge(DocumentFragment<?> fragment, List<String> paths) {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        for(String path : paths) {
+            if(!fragment.exists(path)) {
+                continue;
+            }
+            String[] segments = path.split("\\.");
+            Map<String, Object> parent = result;
+            for(int i = 0; i < segments.length - 1; i++) {
+                Object child = parent.get(segments[i]);
+                if(!(child instanceof Map)) {
+                    child = new LinkedHashMap<String, Object>();
+                    parent.put(segments[i], child);
+                }
+                parent = (Map<String, Object>) child;
+            }
+            parent.put(segments[segments.length - 1], plain(fragment.content(path)));
+        }
+        return result;
+    }
+
+    static Object plain(Object value) {
+        if(value instanceof JsonObject) {
+            return ((JsonObject) value).toMap();
+        } else if(value instanceof JsonArray) {
+            return ((JsonArray) value).toList();
+        }
+        return value;
+    }
+
+}
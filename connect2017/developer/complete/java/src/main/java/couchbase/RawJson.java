@@ -0,0 +1,81 @@
+package couchbase;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Responses built straight from the JSON text of a stored document. Without excluded fields
+ * the text is written as it is; otherwise it is copied token by token with the excluded
+ * top-level fields skipped, so no object tree is ever built.
+ */
+final class RawJson {
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private RawJson() {}
+
+    static ResponseEntity<byte[]> response(String json, Set<String> exclude) {
+        byte[] body = exclude.isEmpty() ? json.getBytes(StandardCharsets.UTF_8) : strip(json, exclude);
+        return ResponseEntity.status(HttpStatus.OK).contentType(MediaType.APPLICATION_JSON_UTF8).body(body);
+    }
+
+    /**
+     * Parses the comma separated `exclude` request parameter.
+     */
+    static Set<String> fields(String exclude) {
+        if(exclude == null || exclude.isEmpty()) {
+            return Collections.emptySet();
+        }
+        Set<String> fields = new HashSet<String>();
+        for(String field : exclude.split(",")) {
+            if(!field.trim().isEmpty()) {
+                fields.add(field.trim());
+            }
+        }
+        return fields;
+    }
+
+    static Map<String, Object> strip(Map<String, Object> document, Set<String> exclude) {
+        if(exclude.isEmpty()) {
+            return document;
+        }
+        Map<String, Object> stripped = new LinkedHashMap<String, Object>(document);
+        stripped.keySet().removeAll(exclude);
+        return stripped;
+    }
+
+    static byte[] strip(String json, Set<String> exclude) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(json.length());
+        try (JsonParser parser = FACTORY.createParser(json); JsonGenerator generator = FACTORY.createGenerator(out)) {
+            if(parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IllegalArgumentException("Not a JSON object");
+            }
+            generator.writeStartObject();
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                if(exclude.contains(name)) {
+                    parser.skipChildren();
+                } else {
+                    generator.writeFieldName(name);
+                    generator.copyCurrentStructure(parser);
+                }
+            }
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,46 @@
+package couchbase;
+
+import com.couchbase.client.java.document.json.JsonObject;
+
+/**
+ * Validation rules for the documents the API creates, shared by the single-record handlers
+ * and the bulk importer.
+ */
+final class Records {
+
+    private Records() {}
+
+    /**
+     * Returns the reason the record is invalid for the given type, or null if it is valid. A
+     * required field of the wrong JSON type is reported like a missing one.
+     */
+    static String validate(String type, JsonObject record) {
+        if("patient".equals(type)) {
+            if(!(record.get("information") instanceof JsonObject)) {
+                return "An `information` object is required";
+            }
+        } else if("doctor".equals(type)) {
+            if(!(record.get("information") instanceof JsonObject)) {
+                return "An `information` object is required";
+            } else if(isBlank(record.get("department"))) {
+                return "A `department` string is required";
+            }
+        } else if("appointment".equals(type)) {
+            if(isBlank(record.get("doctor"))) {
+                return "A `doctor` string is required";
+            } else if(isBlank(record.get("patient"))) {
+                return "A `patient` string is required";
+            } else if(!(record.get("appointment") instanceof Number)) {
+                return "A `appointment` unix time is required";
+            }
+        } else {
+            return "A `type` of patient, doctor or appointment is required";
+        }
+        return null;
+    }
+
+    private static boolean isBlank(Object value) {
+        return !(value instanceof String) || ((String) value).isEmpty();
+    }
+
+}
@@ -0,0 +1,125 @@
+package couchbase;
+
+import com.couchbase.client.java.document.json.JsonObject;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Reads the hits of an FTS search response one at a time with a streaming parser, so each
+ * hit can be written to the client before the rest of the response is parsed. Hits scoring
+ * below `minScore` are dropped, and since hits arrive best first so are all after them.
+ *
+ * Once the hits are read, {@link #summary()} has the response's `total_hits`, `max_score`
+ * and `took`, its `status` with the `failed` partitions and their `errors`, and a `next`
+ * token to continue after the last hit when the page was full and no hit fell below
+ * `minScore`.
+ */
+final class SearchHits implements Iterator<byte[]> {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final Set<String> SUMMARY = new HashSet<String>(Arrays.asList("total_hits", "max_score", "took"));
+
+    private final JsonParser parser;
+
+    private final Double minScore;
+
+    private final int size;
+
+    private final JsonObject summary = JsonObject.create();
+
+    private boolean inHits;
+
+    private boolean belowMinScore;
+
+    private int count;
+
+    private JsonNode lastSort;
+
+    private byte[] next;
+
+    SearchHits(String response, Double minScore, int size) {
+        this.minScore = minScore;
+        this.size = size;
+        try {
+            this.parser = MAPPER.getFactory().createParser(response);
+            if(parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IllegalStateException("Search response is not an object");
+            }
+            inHits = readFields();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not parse the search response", e);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while(next == null && inHits) {
+                if(parser.nextToken() == JsonToken.END_ARRAY) {
+                    inHits = false;
+                    readFields();
+                } else if(belowMinScore) {
+                    parser.skipChildren();
+                } else {
+                    JsonNode hit = MAPPER.readTree(parser);
+                    if(minScore != null && hit.path("score").asDouble() < minScore) {
+                        belowMinScore = true;
+                    } else {
+                        count++;
+                        lastSort = hit.get("sort");
+                        next = MAPPER.writeValueAsBytes(hit);
+                    }
+                }
+            }
+            return next != null;
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not parse the search response", e);
+        }
+    }
+
+    @Override
+    public byte[] next() {
+        if(!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        byte[] hit = next;
+        next = null;
+        return hit;
+    }
+
+    /**
+     * The fields after the hits; complete once {@link #hasNext()} returned false.
+     */
+    JsonObject summary() {
+        return summary.put("next", count == size && !belowMinScore && lastSort != null
+            ? ContinuationToken.encode(lastSort.toString())
+            : null);
+    }
+
+    /**
+     * Reads top level fields into the summary until the hits array starts, returning true,
+     * or the response ends, returning false.
+     */
+    private boolean readFields() throws IOException {
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if("hits".equals(name) && value == JsonToken.START_ARRAY) {
+                return true;
+            } else if("status".equals(name) && value == JsonToken.START_OBJECT) {
+                summary.put(name, JsonObject.fromJson(MAPPER.readTree(parser).toString()));
+            } else if(SUMMARY.contains(name) && value.isNumeric()) {
+                summary.put(name, value == JsonToken.VALUE_NUMBER_INT ? (Object) parser.getLongValue() : parser.getDoubleValue());
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,213 @@
+package couchbase;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentAlreadyExistsException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import rx.Observable;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+
+/**
+ * Double-booking protection without queries or locks. A doctor's time is divided into slots
+ * of `appointments.slot-minutes`, and booking an appointment inserts one
+ * `slot::<doctor>::<yyyyMMddHHmm>` document (UTC) per slot it covers. Insert fails with
+ * DocumentAlreadyExists if the slot is taken, so two bookings of the same slot can never both
+ * succeed. The slots of a booking are inserted in parallel; if any of them is taken, the ones
+ * that were inserted are removed again and the booking fails with {@link Conflict}.
+ *
+ * Slot documents expire `appointments.slot-retention-hours` after the end of their slot, so
+ * the slots of past appointments do not accumulate in the bucket.
+ */
+@Component
+public class SlotReservations {
+
+    private static final DateTimeFormatter MINUTE = DateTimeFormatter.ofPattern("yyyyMMddHHmm").withZone(ZoneOffset.UTC);
+
+    private final Bucket bucket;
+
+    private final Metrics metrics;
+
+    private final boolean enabled;
+
+    private final long slotSeconds;
+
+    private final int maxSlots;
+
+    private final long retentionSeconds;
+
+    @Autowired
+    public SlotReservations(Bucket bucket, Metrics metrics,
+                            @Value("${appointments.reservations.enabled:true}") boolean enabled,
+                            @Value("${appointments.slot-minutes:15}") int slotMinutes,
+                            @Value("${appointments.max-slots:32}") int maxSlots,
+                            @Value("${appointments.slot-retention-hours:24}") int retentionHours) {
+        this.bucket = bucket;
+        this.metrics = metrics;
+        this.enabled = enabled;
+        this.slotSeconds = slotMinutes * 60L;
+        this.maxSlots = maxSlots;
+        this.retentionSeconds = retentionHours * 3600L;
+    }
+
+    public static String key(String doctorId, long slot) {
+        return "slot::" + doctorId + "::" + MINUTE.format(Instant.ofEpochSecond(slot));
+    }
+
+    /**
+     * The start times of the slots covering [start, start + duration); a missing or zero
+     * duration covers the slot `start` falls in.
+     */
+    List<Long> slots(long start, long duration) {
+        List<Long> slots = new ArrayList<Long>();
+        long end = start + Math.max(1, duration);
+        for(long slot = Math.floorDiv(start, slotSeconds) * slotSeconds; slot < end; slot += slotSeconds) {
+            slots.add(slot);
+        }
+        return slots;
+    }
+
+    /**
+     * The expiry of a slot document as a Unix time, which the server accepts for any expiry
+     * longer than 30 days; counted from now for a slot that has already ended.
+     */
+    int expiry(long slot, long now) {
+        return (int) (Math.max(slot + slotSeconds, now) + retentionSeconds);
+    }
+
+    /**
+     * Returns the reason the appointment cannot be reserved regardless of other bookings, or
+     * null.
+     */
+    public String validate(JsonObject appointment) {
+        Object duration = appointment.get("duration");
+        if(duration != null && (!(duration instanceof Number) || ((Number) duration).longValue() <= 0)) {
+            return "A positive `duration` in seconds is required";
+        } else if(slots(appointment.getLong("appointment"), duration(appointment)).size() > maxSlots) {
+            return "An appointment can cover at most " + maxSlots + " slots";
+        }
+        return null;
+    }
+
+    /**
+     * Reserves every slot the appointment covers for it, or fails with {@link Conflict} and
+     * leaves none of them reserved.
+     */
+    public Observable<List<String>> reserve(String appointmentId, JsonObject appointment) {
+        if(!enabled) {
+            return Observable.just(Collections.<String>emptyList());
+        }
+        String doctor = appointment.getString("doctor");
+        List<Long> slots = slots(appointment.getLong("appointment"), duration(appointment));
+        long now = System.currentTimeMillis() / 1000L;
+        return Observable.from(slots)
+            .flatMap(slot -> {
+                JsonDocument document = JsonDocument.create(key(doctor, slot), expiry(slot, now), JsonObject.create()
+                    .put("type", "slot")
+                    .put("doctor", doctor)
+                    .put("slot", slot)
+                    .put("appointmentId", appointmentId));
+                return metrics.timed("kv", "insert", bucket.async().insert(document))
+                    .map(inserted -> new Attempt(inserted, null))
+                    .onErrorReturn(e -> new Attempt(document, e));
+            })
+            .toList()
+            .flatMap(attempts -> {
+                List<JsonDocument> reserved = new ArrayList<JsonDocument>();
+                List<String> taken = new ArrayList<String>();
+                Throwable failure = null;
+                for(Attempt attempt : attempts) {
+                    if(attempt.error == null) {
+                        reserved.add(attempt.document);
+                    } else if(attempt.error instanceof DocumentAlreadyExistsException) {
+                        taken.add(attempt.document.id());
+                    } else {
+                        failure = attempt.error;
+                    }
+                }
+                if(taken.isEmpty() && failure == null) {
+                    List<String> keys = new ArrayList<String>();
+                    for(JsonDocument document : reserved) {
+                        keys.add(document.id());
+                    }
+                    Collections.sort(keys);
+                    return Observable.just(keys);
+                }
+                Collections.sort(taken);
+                Throwable error = failure != null ? failure : new Conflict(taken);
+                return Observable.from(reserved)
+                    .flatMap(document -> remove(document.id(), document.cas()))
+                    .toList()
+                    .flatMap(removed -> Observable.<List<String>>error(error));
+            });
+    }
+
+    /**
+     * Frees the slots the appointment covers that are still reserved for it.
+     */
+    public Observable<Integer> release(String appointmentId, String doctorId, long start, long duration) {
+        if(!enabled) {
+            return Observable.just(0);
+        }
+        return Observable.from(slots(start, duration))
+            .flatMap(slot -> metrics.timed("kv", "get", bucket.async().get(key(doctorId, slot)))
+                .filter(document -> appointmentId.equals(document.content().getString("appointmentId")))
+                .flatMap(document -> remove(document.id(), document.cas())))
+            .count();
+    }
+
+    static long duration(JsonObject appointment) {
+        Object duration = appointment.get("duration");
+        return duration instanceof Number ? ((Number) duration).longValue() : 0L;
+    }
+
+    /**
+     * Removes a slot only if it is unchanged since it was read or inserted, so a slot that was
+     * freed and booked again in between is left alone.
+     */
+    private Observable<Boolean> remove(String key, long cas) {
+        return metrics.timed("kv", "remove", bucket.async().remove(JsonDocument.create(key, null, cas)))
+            .map(removed -> true)
+            .onErrorResumeNext(e -> e instanceof DocumentDoesNotExistException || e instanceof CASMismatchException
+                ? Observable.just(false)
+                : Observable.<Boolean>error(e));
+    }
+
+    private static final class Attempt {
+
+        private final JsonDocument document;
+        private final Throwable error;
+
+        private Attempt(JsonDocument document, Throwable error) {
+            this.document = document;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Some of the slots of a booking are already reserved by another appointment.
+     */
+    public static final class Conflict extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> slots;
+
+        Conflict(List<String> slots) {
+            super("The doctor is already booked for " + slots);
+            this.slots = slots;
+        }
+
+        public List<String> slots() {
+            return slots;
+        }
+    }
+
+}
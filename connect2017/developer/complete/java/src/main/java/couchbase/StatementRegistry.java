@@ -0,0 +1,207 @@
+package couchbase;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.query.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import rx.Observable;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Every N1QL statement the API runs, defined once against the configured bucket and executed
+ * as a prepared statement. The SDK prepares on first use and re-prepares when the server
+ * reports the plan as stale, so callers only deal in statement names. Executions, errors and
+ * latency (until the last row is read) are counted per statement, and the latency together
+ * with the server-side metrics of every result is also recorded in {@link Metrics}.
+ *
+ * The `*.page` statements seek past the last key of the previous page, so every page costs
+ * the same as long as they are covered by an index ordered the same way, e.g.
+ * CREATE INDEX idx_type_id ON `bucket`(type, META().id).
+ */
+@Component
+public class StatementRegistry {
+
+    private static final N1qlParams PREPARED = N1qlParams.build().adhoc(false);
+
+    private final Bucket bucket;
+
+    private final Metrics metrics;
+
+    private final Map<String, Definition> statements = new LinkedHashMap<String, Definition>();
+
+    @Autowired
+    public StatementRegistry(Bucket bucket, Metrics metrics) {
+        this.bucket = bucket;
+        this.metrics = metrics;
+        String name = "`" + bucket.name() + "`";
+        define("patients", "SELECT META().id, " + name + ".* FROM " + name + " WHERE type = 'patient'");
+        define("doctors", "SELECT META().id, " + name + ".* FROM " + name + " WHERE type = 'doctor'");
+        define("appointments", "SELECT META().id, " + name + ".* FROM " + name + " WHERE type = 'appointment'");
+        define("patients.page", "SELECT META().id, " + name + ".* FROM " + name + " WHERE type = 'patient' AND META().id > $after ORDER BY META().id LIMIT $limit");
+        define("doctors.page", "SELECT META().id, " + name + ".* FROM " + name + " WHERE type = 'doctor' AND META().id > $after ORDER BY META().id LIMIT $limit");
+        define("appointments.page", "SELECT META().id, " + name + ".* FROM " + name + " WHERE type = 'appointment' AND META().id > $after ORDER BY META().id LIMIT $limit");
+        define("appointments.keys", "SELECT META().id, doctor, patient FROM " + name + " WHERE type = 'appointment'");
+        define("appointments.calendar", "SELECT META().id, doctor, patient, appointment FROM " + name + " WHERE type = 'appointment' AND doctor IS VALUED AND appointment IS NUMBER");
+        define("appointments.patient", "SELECT " + name + ".* FROM " + name + " WHERE type = 'appointment' AND patient = $id");
+        define("appointments.doctor", "SELECT " + name + ".* FROM " + name + " WHERE type = 'appointment' AND doctor = $id");
+        define("patients.search", "SELECT META().id, information, notes FROM " + name + " WHERE type = 'patient'");
+        define("notes.search", "SELECT patient, notes FROM " + name + " WHERE type = 'notes'");
+        define("stats.doctors", "SELECT META().id, ARRAY_LENGTH(patients) AS patients FROM " + name + " WHERE type = 'doctor'");
+        define("stats.notes", "SELECT note.doctor, COUNT(*) AS notes FROM " + name + " AS patients UNNEST patients.notes AS note WHERE patients.type = 'patient' AND note.doctor IS VALUED GROUP BY note.doctor");
+        define("stats.notes.bucketed", "SELECT note.doctor, COUNT(*) AS notes FROM " + name + " AS notes UNNEST notes.notes AS note WHERE notes.type = 'notes' AND note.doctor IS VALUED GROUP BY note.doctor");
+        define("doctor.patients.serviced", "SELECT patients.information, patients.timestamp, patients.type, META(patients).id FROM " + name + " AS patients WHERE patients.type = 'patient' AND ANY note IN patients.notes SATISFIES note.doctor = $id END");
+        define("doctor.patients.serviced.bucketed", "SELECT DISTINCT patients.information, patients.timestamp, patients.type, META(patients).id FROM " + name + " AS notes JOIN " + name + " AS patients ON KEYS notes.patient WHERE notes.type = 'notes' AND ANY note IN notes.notes SATISFIES note.doctor = $id END");
+    }
+
+    private void define(String name, String text) {
+        statements.put(name, new Definition(name, text));
+    }
+
+    public Observable<AsyncN1qlQueryResult> query(String name) {
+        return query(name, null);
+    }
+
+    public Observable<AsyncN1qlQueryResult> query(String name, JsonObject parameters) {
+        Definition statement = statements.get(name);
+        if(statement == null) {
+            throw new IllegalArgumentException("Unknown statement: " + name);
+        }
+        N1qlQuery query = parameters == null
+            ? N1qlQuery.simple(statement.text, PREPARED)
+            : N1qlQuery.parameterized(statement.text, parameters, PREPARED);
+        return Observable.defer(() -> {
+            long start = System.nanoTime();
+            return bucket.async().query(query)
+                .doOnError(e -> statement.record(start, false))
+                .map(result -> (AsyncN1qlQueryResult) new TimedResult(result, statement, start));
+        });
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        for(Map.Entry<String, Definition> entry : statements.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().toMap());
+        }
+        return stats;
+    }
+
+    private final class Definition {
+
+        private final String name;
+        private final String text;
+        private final LongAdder executions = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private Definition(String name, String text) {
+            this.name = name;
+            this.text = text;
+        }
+
+        private void record(long start, boolean success) {
+            long elapsed = System.nanoTime() - start;
+            executions.increment();
+            if(!success) {
+                errors.increment();
+            }
+            totalNanos.add(elapsed);
+            maxNanos.accumulateAndGet(elapsed, Math::max);
+            metrics.backend("n1ql", name, elapsed, success);
+        }
+
+        private Map<String, Object> toMap() {
+            long count = executions.sum();
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            map.put("statement", text);
+            map.put("executions", count);
+            map.put("errors", errors.sum());
+            map.put("meanMillis", count == 0 ? 0.0 : totalNanos.sum() / (double) count / TimeUnit.MILLISECONDS.toNanos(1));
+            map.put("maxMillis", maxNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1));
+            return map;
+        }
+    }
+
+    /**
+     * Records the execution and its server-side metrics once its rows have been fully read,
+     * as failed when the response reports errors even though the rows completed normally.
+     */
+    private final class TimedResult implements AsyncN1qlQueryResult {
+
+        private final AsyncN1qlQueryResult delegate;
+        private final Definition statement;
+        private final long start;
+        private final Observable<N1qlMetrics> info;
+        private final Observable<Boolean> finalSuccess;
+
+        private TimedResult(AsyncN1qlQueryResult delegate, Definition statement, long start) {
+            this.delegate = delegate;
+            this.statement = statement;
+            this.start = start;
+            this.info = delegate.info().cache();
+            this.finalSuccess = delegate.finalSuccess().cache();
+        }
+
+        @Override
+        public Observable<AsyncN1qlQueryRow> rows() {
+            return delegate.rows()
+                .doOnCompleted(() -> {
+                    finalSuccess.defaultIfEmpty(true).subscribe(
+                        success -> statement.record(start, success),
+                        e -> statement.record(start, false));
+                    info.subscribe(server -> metrics.n1ql(statement.name, server), e -> { });
+                })
+                .doOnError(e -> statement.record(start, false));
+        }
+
+        @Override
+        public Observable<Object> signature() {
+            return delegate.signature();
+        }
+
+        @Override
+        public Observable<N1qlMetrics> info() {
+            return info;
+        }
+
+        @Override
+        public Observable<JsonObject> profileInfo() {
+            return delegate.profileInfo();
+        }
+
+        @Override
+        public boolean parseSuccess() {
+            return delegate.parseSuccess();
+        }
+
+        @Override
+        public Observable<String> status() {
+            return delegate.status();
+        }
+
+        @Override
+        public Observable<Boolean> finalSuccess() {
+            return finalSuccess;
+        }
+
+        @Override
+        public Observable<JsonObject> errors() {
+            return delegate.errors();
+        }
+
+        @Override
+        public String requestId() {
+            return delegate.requestId();
+        }
+
+        @Override
+        public String clientContextId() {
+            return delegate.clientContextId();
+        }
+    }
+
+}
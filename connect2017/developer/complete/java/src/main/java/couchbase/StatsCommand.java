@@ -0,0 +1,31 @@
+package couchbase;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.stereotype.Component;
+
+/**
+ * Command line entry point that recounts the stats document of every doctor, after an import
+ * or whenever the counters have drifted, e.g.
+ *
+ * java -jar workshop.jar --stats.reconcile=true --spring.main.web-environment=false
+ */
+@Component
+public class StatsCommand implements CommandLineRunner {
+
+    @Autowired
+    private DoctorStats stats;
+
+    @Value("${stats.reconcile:false}")
+    private boolean reconcile;
+
+    @Override
+    public void run(String... args) throws Exception {
+        if(!reconcile) {
+            return;
+        }
+        System.out.println("Reconciled doctor stats: " + stats.reconcile().toBlocking().single());
+    }
+
+}
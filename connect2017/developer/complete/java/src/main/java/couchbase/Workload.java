@@ -0,0 +1,200 @@
+package couchbase;
+
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Synthetic hospital data for load testing. Ids are derived from the index of the record, so
+ * a load run can address the data set created by an earlier setup with the same sizes.
+ *
+ * Doctor popularity follows a Zipf distribution: a few doctors have most of the patients and
+ * appointments. Patients are Zipf-distributed as well when notes are appended, so the note
+ * arrays of the most visited patients keep growing while most stay short.
+ */
+final class Workload {
+
+    private static final String[] FIRSTNAMES = { "Nic", "Arun", "Laura", "Matt", "Todd", "Tyler", "Jeff", "Hod",
+        "Maria", "Wei", "Aisha", "Olga", "Kenji", "Priya", "Lucas", "Fatima", "Noah", "Emma", "Ivan", "Sofia" };
+
+    private static final String[] LASTNAMES = { "Smith", "Garcia", "Chen", "Patel", "Muller", "Rossi", "Kim",
+        "Nguyen", "Silva", "Novak", "Haddad", "Okafor", "Jensen", "Tanaka", "Cohen", "Dubois" };
+
+    private static final String[] DEPARTMENTS = { "cardiology", "oncology", "pediatrics", "neurology", "radiology",
+        "orthopedics", "dermatology", "emergency" };
+
+    static final String[] CONDITIONS = { "fever", "headache", "migraine", "asthma", "diabetes", "hypertension",
+        "fracture", "allergy", "bronchitis", "anemia", "arthritis", "insomnia", "concussion", "influenza" };
+
+    private static final String[] WORDS = { "patient", "reports", "mild", "severe", "prescribed", "rest", "fluids",
+        "follow", "up", "in", "two", "weeks", "blood", "pressure", "normal", "elevated", "resolved", "referred",
+        "to", "specialist", "x-ray", "clear", "persistent", "symptoms", "improving", "dosage", "adjusted" };
+
+    private static final long DAY = 86400L;
+
+    final int doctors;
+
+    final int patients;
+
+    final int appointments;
+
+    private final long now;
+
+    private final Zipf doctorPopularity;
+
+    private final Zipf patientActivity;
+
+    Workload(int doctors, int patients, int appointments, long now) {
+        this.doctors = doctors;
+        this.patients = patients;
+        this.appointments = appointments;
+        this.now = now;
+        this.doctorPopularity = new Zipf(doctors, 1.1);
+        this.patientActivity = new Zipf(patients, 0.9);
+    }
+
+    static String doctorId(int index) {
+        return UUID.nameUUIDFromBytes(("doctor:" + index).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    static String patientId(int index) {
+        return UUID.nameUUIDFromBytes(("patient:" + index).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    static String appointmentId(int index) {
+        return UUID.nameUUIDFromBytes(("appointment:" + index).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    int nextDoctor(Random random) {
+        return doctorPopularity.next(random);
+    }
+
+    int nextPatient(Random random) {
+        return patientActivity.next(random);
+    }
+
+    /**
+     * The doctor a patient was first assigned to, which is where their notes and most of their
+     * appointments come from.
+     */
+    int primaryDoctor(int patient) {
+        return doctorPopularity.next(new Random(patient * 31L + 7));
+    }
+
+    JsonObject doctor(int index, JsonArray patients) {
+        Random random = new Random(index);
+        return JsonObject.create()
+            .put("id", doctorId(index))
+            .put("type", "doctor")
+            .put("information", information(random))
+            .put("department", DEPARTMENTS[random.nextInt(DEPARTMENTS.length)])
+            .put("patients", patients)
+            .put("timestamp", now - random.nextInt(3650) * DAY);
+    }
+
+    /**
+     * A patient with a long-tailed number of notes, most a handful and a few hundreds.
+     */
+    JsonObject patient(int index) {
+        Random random = new Random(-index - 1L);
+        int count = (int) Math.min(500, Math.floor(Math.exp(random.nextGaussian() * 1.2 + 1.0)));
+        long timestamp = now - (30 + random.nextInt(3650)) * DAY;
+        JsonArray notes = JsonArray.create();
+        for(int i = 0; i < count; i++) {
+            timestamp += random.nextInt((int) (30 * DAY));
+            notes.add(note(random, primaryDoctor(index), Math.min(timestamp, now)));
+        }
+        return JsonObject.create()
+            .put("id", patientId(index))
+            .put("type", "patient")
+            .put("information", information(random))
+            .put("notes", notes)
+            .put("timestamp", timestamp);
+    }
+
+    JsonObject appointment(int index) {
+        Random random = new Random(index * 1000003L);
+        int patient = nextPatient(random);
+        int doctor = random.nextInt(4) == 0 ? nextDoctor(random) : primaryDoctor(patient);
+        return JsonObject.create()
+            .put("id", appointmentId(index))
+            .put("type", "appointment")
+            .put("doctor", doctorId(doctor))
+            .put("patient", patientId(patient))
+            .put("appointment", now + (random.nextInt((int) (60 * DAY)) - 30 * DAY))
+            .put("timestamp", now - random.nextInt((int) (30 * DAY)));
+    }
+
+    JsonObject note(Random random, int doctor, long timestamp) {
+        return JsonObject.create()
+            .put("doctor", doctorId(doctor))
+            .put("message", message(random))
+            .put("timestamp", timestamp);
+    }
+
+    /**
+     * Writes all records of one type as NDJSON, in the format accepted by /import.
+     */
+    void write(String type, Writer writer) throws IOException {
+        List<JsonArray> assigned = new ArrayList<JsonArray>();
+        if("doctor".equals(type)) {
+            for(int i = 0; i < doctors; i++) {
+                assigned.add(JsonArray.create());
+            }
+            for(int i = 0; i < patients; i++) {
+                assigned.get(primaryDoctor(i)).add(patientId(i));
+            }
+        }
+        int count = "doctor".equals(type) ? doctors : "patient".equals(type) ? patients : appointments;
+        for(int i = 0; i < count; i++) {
+            JsonObject record = "doctor".equals(type) ? doctor(i, assigned.get(i)) : "patient".equals(type) ? patient(i) : appointment(i);
+            writer.write(record.toString());
+            writer.write('\n');
+        }
+    }
+
+    private static JsonObject information(Random random) {
+        return JsonObject.create()
+            .put("firstname", FIRSTNAMES[random.nextInt(FIRSTNAMES.length)])
+            .put("lastname", LASTNAMES[random.nextInt(LASTNAMES.length)])
+            .put("gender", random.nextBoolean() ? "male" : "female");
+    }
+
+    private static String message(Random random) {
+        StringBuilder message = new StringBuilder(CONDITIONS[random.nextInt(CONDITIONS.length)]);
+        int words = 6 + random.nextInt(30);
+        for(int i = 0; i < words; i++) {
+            message.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return message.append('.').toString();
+    }
+
+    /**
+     * Zipf-distributed indexes in [0, n), sampled by binary search over the cumulative weights.
+     */
+    static final class Zipf {
+
+        private final double[] cumulative;
+
+        Zipf(int n, double exponent) {
+            cumulative = new double[n];
+            double total = 0;
+            for(int i = 0; i < n; i++) {
+                total += 1.0 / Math.pow(i + 1, exponent);
+                cumulative[i] = total;
+            }
+            for(int i = 0; i < n; i++) {
+                cumulative[i] /= total;
+            }
+        }
+
+        int next(Random random) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            return Math.min(index < 0 ? -index - 1 : index, cumulative.length - 1);
+        }
+    }
+
+}
@@ -0,0 +1,42 @@
+package couchbase;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.couchbase.client.java.error.subdoc.PathMismatchException;
+import org.junit.Test;
+import rx.Observable;
+import rx.schedulers.Schedulers;
+import java.util.List;
+import static org.junit.Assert.*;
+
+public class AppendCombinerTest {
+
+    private final Bucket bucket = InMemoryBucket.create("default");
+
+    private final AppendCombiner combiner = new AppendCombiner(bucket, new Metrics(), "notes", 16);
+
+    @Test public void testConcurrentAppendsAllLand() {
+        bucket.insert(JsonDocument.create("p1", JsonObject.create().put("type", "patient")));
+        List<JsonObject> written = Observable.range(0, 200)
+            .flatMap(i -> combiner.append("p1", JsonObject.create().put("n", i)).subscribeOn(Schedulers.io()))
+            .toList().toBlocking().single();
+        assertEquals(200, written.size());
+        assertEquals(200, bucket.get("p1").content().getArray("notes").size());
+    }
+
+    @Test public void testEachCallerGetsItsOwnFailure() {
+        bucket.insert(JsonDocument.create("p2", JsonObject.create().put("notes", "not an array")));
+        try {
+            combiner.append("p2", JsonObject.create()).toBlocking().single();
+            fail();
+        } catch (PathMismatchException expected) { }
+        try {
+            combiner.append("missing", JsonObject.create()).toBlocking().single();
+            fail();
+        } catch (DocumentDoesNotExistException expected) { }
+        bucket.upsert(JsonDocument.create("p2", JsonObject.create()));
+        assertEquals(1, combiner.append("p2", JsonObject.create().put("n", 1)).toBlocking().single().getInt("n").intValue());
+    }
+}
@@ -0,0 +1,31 @@
+package couchbase;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.json.JsonObject;
+import org.junit.Test;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class AppointmentCalendarTest {
+
+    @Test public void testKeysCoverEveryDayInRange() {
+        // 2017-09-11T15:00:00Z to 2017-09-14T00:00:00Z
+        assertEquals(Arrays.asList("calendar::d1::20170911", "calendar::d1::20170912", "calendar::d1::20170913"),
+            AppointmentCalendar.keys("d1", 1505142000L, 1505347200L));
+    }
+
+    @Test public void testWeekIsSevenKeys() {
+        assertEquals(7, AppointmentCalendar.keys("d1", 1505088000L, 1505088000L + 7 * 86400L).size());
+    }
+
+    @Test public void testEscapesBackticksInIds() {
+        assertEquals("appointments.`a``1`", AppointmentCalendar.path("a`1"));
+        Bucket bucket = InMemoryBucket.create("default");
+        AppointmentCalendar calendar = new AppointmentCalendar(bucket, new Metrics(), 92);
+        calendar.add("a`1", JsonObject.create().put("doctor", "d1").put("patient", "p1").put("appointment", 1505142000L)).toBlocking().single();
+        List<Map<String, Object>> day = calendar.range("d1", 1505088000L, 1505174400L).toBlocking().single();
+        assertEquals("a`1", day.get(0).get("id"));
+        assertTrue(calendar.remove("a`1", "d1", 1505142000L).toBlocking().single());
+        assertTrue(calendar.range("d1", 1505088000L, 1505174400L).toBlocking().single().isEmpty());
+    }
+}
@@ -0,0 +1,37 @@
+package couchbase;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import org.junit.Test;
+import rx.Observable;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class AppointmentDeletesTest {
+
+    @Test public void testCleanupFailuresDoNotFailTheDelete() {
+        Bucket bucket = InMemoryBucket.create("default");
+        Metrics metrics = new Metrics();
+        bucket.insert(JsonDocument.create("a1", JsonObject.create().put("type", "appointment").put("doctor", "d1").put("appointment", 1505088000L)));
+        AppointmentCalendar calendar = new AppointmentCalendar(bucket, metrics, 92) {
+            @Override
+            public Observable<Boolean> remove(String appointmentId, String doctorId, long appointment) {
+                return Observable.error(new IllegalStateException("calendar unavailable"));
+            }
+        };
+        NoteStore noteStore = new NoteStore(bucket, metrics, "inline", false, 16);
+        LocalMutationFeed feed = new LocalMutationFeed();
+        List<Mutation> published = new ArrayList<Mutation>();
+        feed.mutations().subscribe(published::add);
+        AppointmentDeletes deletes = new AppointmentDeletes(bucket, metrics, calendar, feed, new SlotReservations(bucket, metrics, true, 15, 32, 24),
+            new DoctorStats(bucket, metrics, new StatementRegistry(bucket, metrics), noteStore), 4);
+        Map<String, Object> result = deletes.deleteAll(Arrays.asList("a1")).toBlocking().single();
+        assertEquals(Arrays.asList("a1"), result.get("deleted"));
+        assertTrue(((List<?>) result.get("errors")).isEmpty());
+        assertFalse(bucket.exists("a1"));
+        assertEquals(1, published.size());
+        assertEquals(Mutation.Type.DELETE, published.get(0).getType());
+    }
+
+}
@@ -0,0 +1,56 @@
+package couchbase;
+
+import com.couchbase.client.java.document.json.JsonObject;
+import org.junit.Test;
+import rx.Observable;
+import rx.subjects.PublishSubject;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import static org.junit.Assert.*;
+
+public class AppointmentIndexTest {
+
+    private static JsonObject appointment(String doctor, String patient) {
+        return JsonObject.create().put("type", "appointment").put("doctor", doctor).put("patient", patient);
+    }
+
+    @Test public void testLoadAndFeedMutations() {
+        LocalMutationFeed feed = new LocalMutationFeed();
+        AppointmentIndex index = new AppointmentIndex(feed);
+        assertFalse(index.ready());
+
+        index.load(Observable.just(appointment("d1", "p1").put("id", "a1"), appointment("d1", "p2").put("id", "a2")));
+        assertTrue(index.ready());
+        assertEquals(new HashSet<String>(Arrays.asList("a1", "a2")), index.byDoctor("d1"));
+
+        feed.publish(Mutation.upsert("a3", appointment("d2", "p1")));
+        feed.publish(Mutation.delete("a1"));
+        assertEquals(Collections.singleton("a2"), index.byDoctor("d1"));
+        assertEquals(Collections.singleton("a3"), index.byPatient("p1"));
+        assertEquals(Collections.singleton("a3"), index.byDoctor("d2"));
+    }
+
+    @Test public void testDeleteDuringLoadIsNotResurrected() {
+        LocalMutationFeed feed = new LocalMutationFeed();
+        AppointmentIndex index = new AppointmentIndex(feed);
+        PublishSubject<JsonObject> existing = PublishSubject.create();
+        index.load(existing);
+
+        feed.publish(Mutation.delete("a1"));
+        existing.onNext(appointment("d1", "p1").put("id", "a1"));
+        existing.onCompleted();
+
+        assertTrue(index.ready());
+        assertTrue(index.byDoctor("d1").isEmpty());
+    }
+
+    @Test public void testIgnoresOtherDocumentTypes() {
+        LocalMutationFeed feed = new LocalMutationFeed();
+        AppointmentIndex index = new AppointmentIndex(feed);
+        index.load(Observable.<JsonObject>empty());
+
+        feed.publish(Mutation.upsert("p1", JsonObject.create().put("type", "patient").put("doctor", "d1")));
+        assertTrue(index.byDoctor("d1").isEmpty());
+    }
+}
@@ -0,0 +1,33 @@
+package couchbase;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.json.JsonObject;
+import org.junit.Test;
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class BulkImporterTest {
+
+    @Test public void testReportsWronglyTypedLinesAndKeepsGoing() {
+        Bucket bucket = InMemoryBucket.create("default");
+        Metrics metrics = new Metrics();
+        BulkImporter importer = new BulkImporter(bucket, new LocalMutationFeed(), metrics, new AppointmentCalendar(bucket, metrics, 92), 4, 100);
+        String input = "{\"id\":\"p1\",\"information\":{}}\n"
+            + "{\"id\":\"a1\",\"type\":\"appointment\",\"doctor\":5,\"patient\":\"p1\",\"appointment\":1508371200}\n"
+            + "{\"id\":\"x1\",\"type\":1,\"information\":{}}\n"
+            + "{\"id\":7,\"information\":{}}\n"
+            + "{\"id\":\"p2\",\"information\":{}}\n";
+        Map<Long, JsonObject> results = new TreeMap<Long, JsonObject>();
+        JsonObject summary = importer.run(new BufferedReader(new StringReader(input)), "patient",
+            batch -> batch.forEach(result -> results.put(result.getLong("line"), result)));
+        assertEquals(JsonObject.create().put("lines", 5L).put("succeeded", 2L).put("failed", 3L), summary);
+        assertEquals("A `doctor` string is required", results.get(2L).getString("message"));
+        assertEquals("A `type` of patient, doctor or appointment is required", results.get(3L).getString("message"));
+        assertEquals("An `id` must be a non-empty string", results.get(4L).getString("message"));
+        assertTrue(results.get(5L).getBoolean("success"));
+        assertNotNull(bucket.get("p2"));
+    }
+
+}
@@ -0,0 +1,52 @@
+package couchbase;
+
+import org.junit.Test;
+import rx.Observable;
+import rx.observers.TestSubscriber;
+import rx.subjects.PublishSubject;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.*;
+
+public class CoalescerTest {
+
+    @Test public void testConcurrentIdenticalCallsShareOneBackendCall() {
+        Coalescer coalescer = new Coalescer(new String[] { "doctors" });
+        AtomicInteger calls = new AtomicInteger();
+        PublishSubject<String> backend = PublishSubject.create();
+
+        TestSubscriber<String> first = new TestSubscriber<String>();
+        TestSubscriber<String> second = new TestSubscriber<String>();
+        coalescer.coalesce("doctors", "", () -> { calls.incrementAndGet(); return backend; }).subscribe(first);
+        coalescer.coalesce("doctors", "", () -> { calls.incrementAndGet(); return backend; }).subscribe(second);
+        backend.onNext("result");
+        backend.onCompleted();
+
+        assertEquals(1, calls.get());
+        first.assertValue("result");
+        second.assertValue("result");
+        @SuppressWarnings("unchecked")
+        Map<String, Object> doctors = (Map<String, Object>) coalescer.stats().get("doctors");
+        assertEquals(1L, doctors.get("collapsed"));
+        assertEquals(0, coalescer.stats().get("inFlight"));
+    }
+
+    @Test public void testCompletedFlightsAreNotReused() {
+        Coalescer coalescer = new Coalescer(new String[] { "doctors" });
+        AtomicInteger calls = new AtomicInteger();
+        coalescer.coalesce("doctors", "", () -> Observable.just(calls.incrementAndGet())).toBlocking().single();
+        coalescer.coalesce("doctors", "", () -> Observable.just(calls.incrementAndGet())).toBlocking().single();
+        assertEquals(2, calls.get());
+    }
+
+    @Test public void testDifferentKeysAndDisabledEndpointsAreNotShared() {
+        Coalescer coalescer = new Coalescer(new String[] { "doctors" });
+        AtomicInteger calls = new AtomicInteger();
+        PublishSubject<String> backend = PublishSubject.create();
+        coalescer.coalesce("doctors", "a", () -> { calls.incrementAndGet(); return backend; }).subscribe();
+        coalescer.coalesce("doctors", "b", () -> { calls.incrementAndGet(); return backend; }).subscribe();
+        coalescer.coalesce("patients", "a", () -> { calls.incrementAndGet(); return backend; }).subscribe();
+        coalescer.coalesce("patients", "a", () -> { calls.incrementAndGet(); return backend; }).subscribe();
+        assertEquals(4, calls.get());
+    }
+}
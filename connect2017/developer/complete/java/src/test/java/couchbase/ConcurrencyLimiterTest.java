@@ -0,0 +1,53 @@
+package couchbase;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ConcurrencyLimiterTest {
+
+    private static void saturate(ConcurrencyLimiter limiter, long rttNanos, int rounds) {
+        for(int round = 0; round < rounds; round++) {
+            int permits = 0;
+            while(limiter.tryAcquire()) {
+                permits++;
+            }
+            for(int i = 0; i < permits; i++) {
+                limiter.release(rttNanos);
+            }
+        }
+    }
+
+    @Test public void testGrowsWhileLatencyIsStable() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 2, 100, 1.5);
+        saturate(limiter, 1000000, 20);
+        assertEquals(100, limiter.limit());
+        assertEquals(0, limiter.inFlight());
+    }
+
+    @Test public void testShrinksWhenLatencyRises() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(50, 2, 100, 1.5);
+        saturate(limiter, 1000000, 30);
+        int before = limiter.limit();
+        saturate(limiter, 20000000, 5);
+        assertTrue(limiter.limit() < before / 2);
+        assertFalse(limiter.limit() < 2);
+    }
+
+    @Test public void testRejectsAtLimitAndIgnoresIdleSamples() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 2, 100, 1.5);
+        for(int i = 0; i < 4; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+        assertFalse(limiter.tryAcquire());
+        limiter.cancel();
+        assertTrue(limiter.tryAcquire());
+        for(int i = 0; i < 4; i++) {
+            limiter.release(1000000);
+        }
+        for(int i = 0; i < 100; i++) {
+            limiter.tryAcquire();
+            limiter.release(1000000);
+        }
+        assertEquals(4, limiter.limit());
+    }
+}
@@ -0,0 +1,16 @@
+package couchbase;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ConditionSearchTest {
+
+    @Test public void testNotesMatchCachedSearchesThroughInflections() {
+        assertTrue(ConditionSearch.overlaps(InvertedIndex.terms("headache"), InvertedIndex.terms("Severe headaches at night")));
+        assertTrue(ConditionSearch.overlaps(InvertedIndex.terms("coughing"), InvertedIndex.terms("Dry cough")));
+        assertTrue(ConditionSearch.overlaps(InvertedIndex.terms("flu"), InvertedIndex.terms("Flu shot")));
+        assertFalse(ConditionSearch.overlaps(InvertedIndex.terms("therapy"), InvertedIndex.terms("See the doctor")));
+        assertFalse(ConditionSearch.overlaps(InvertedIndex.terms("fever"), InvertedIndex.terms("Broken arm")));
+    }
+
+}
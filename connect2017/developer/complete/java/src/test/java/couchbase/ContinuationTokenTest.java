@@ -0,0 +1,18 @@
+package couchbase;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ContinuationTokenTest {
+
+    @Test public void testRoundTrip() {
+        String key = "5c6d1a4e-6b8e-4f0a-9d9e-2b7c1f3e8a10";
+        String token = ContinuationToken.encode(key);
+        assertFalse(token.contains(key));
+        assertEquals(key, ContinuationToken.decode(token));
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void testRejectsGarbage() {
+        ContinuationToken.decode("not-a-token!");
+    }
+}
@@ -0,0 +1,32 @@
+package couchbase;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import org.junit.Test;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class DoctorPatientsTest {
+
+    @Test public void testFetchesEveryPatientWithoutAPage() {
+        Bucket bucket = InMemoryBucket.create("default");
+        JsonArray ids = JsonArray.create();
+        for(int i = 0; i < 1200; i++) {
+            bucket.insert(JsonDocument.create("p" + i, JsonObject.create().put("type", "patient").put("information", JsonObject.create())));
+            ids.add("p" + i);
+        }
+        ids.add("missing");
+        bucket.insert(JsonDocument.create("d1", JsonObject.create().put("type", "doctor").put("patients", ids)));
+        DoctorPatients patients = new DoctorPatients(bucket, new Metrics(), 32);
+        List<Map<String, Object>> all = patients.fetchAll("d1").toBlocking().single();
+        assertEquals(1200, all.size());
+        assertEquals("p1199", all.get(1199).get("id"));
+        Map<String, Object> page = patients.fetch("d1", 1199, 10).toBlocking().single();
+        assertEquals(1, ((List<?>) page.get("results")).size());
+        assertEquals(1, ((List<?>) page.get("errors")).size());
+        assertEquals(1201, page.get("total"));
+    }
+
+}
@@ -0,0 +1,32 @@
+package couchbase;
+
+import com.couchbase.client.java.Bucket;
+import org.junit.Test;
+import java.util.Map;
+import static org.junit.Assert.*;
+
+public class DoctorStatsTest {
+
+    private static final long NINE = 1508403600L;
+
+    private final Bucket bucket = InMemoryBucket.create("default");
+
+    private final DoctorStats stats = new DoctorStats(bucket, new Metrics(), null, null);
+
+    @Test public void testCountsChanges() {
+        assertEquals(0L, stats.get("d1").toBlocking().single().get("appointments"));
+        assertTrue(stats.appointment("d1", NINE, 1).toBlocking().single());
+        assertTrue(stats.appointment("d1", NINE + 3600, 1).toBlocking().single());
+        assertTrue(stats.appointment("d1", NINE + 86400, 1).toBlocking().single());
+        assertTrue(stats.appointment("d1", NINE, -1).toBlocking().single());
+        assertTrue(stats.patient("d1").toBlocking().single());
+        assertTrue(stats.note("d1").toBlocking().single());
+        Map<String, Object> counted = stats.get("d1").toBlocking().single();
+        assertEquals(2, counted.get("appointments"));
+        assertEquals(1, counted.get("patients"));
+        assertEquals(1, counted.get("notes"));
+        assertEquals(1, ((Map<?, ?>) counted.get("days")).get("20171019"));
+        assertEquals(1, ((Map<?, ?>) counted.get("days")).get("20171020"));
+        assertFalse(counted.containsKey("type"));
+    }
+}
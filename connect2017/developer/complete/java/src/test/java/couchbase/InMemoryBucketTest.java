@@ -0,0 +1,97 @@
+package couchbase;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.RawJsonDocument;
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentAlreadyExistsException;
+import com.couchbase.client.java.error.subdoc.MultiMutationException;
+import com.couchbase.client.java.error.subdoc.PathExistsException;
+import com.couchbase.client.java.query.AsyncN1qlQueryResult;
+import com.couchbase.client.java.query.N1qlQuery;
+import com.couchbase.client.java.subdoc.DocumentFragment;
+import com.couchbase.client.java.subdoc.SubdocOptionsBuilder;
+import com.couchbase.client.core.message.kv.subdoc.multi.Lookup;
+import org.junit.Test;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class InMemoryBucketTest {
+
+    private final Bucket bucket = InMemoryBucket.create("default");
+
+    @Test public void testInsertGetAndCas() {
+        JsonDocument inserted = bucket.insert(JsonDocument.create("p1", JsonObject.create().put("type", "patient")));
+        assertEquals("patient", bucket.get("p1").content().getString("type"));
+        assertEquals(inserted.cas(), bucket.async().get("p1", RawJsonDocument.class).toBlocking().single().cas());
+        assertNull(bucket.get("missing"));
+        try {
+            bucket.insert(JsonDocument.create("p1", JsonObject.create()));
+            fail();
+        } catch (DocumentAlreadyExistsException expected) { }
+        bucket.replace(JsonDocument.create("p1", JsonObject.create().put("type", "doctor"), inserted.cas()));
+        try {
+            bucket.replace(JsonDocument.create("p1", JsonObject.create(), inserted.cas()));
+            fail();
+        } catch (CASMismatchException expected) { }
+        assertEquals(1L, bucket.counter("c", 1, 1).content().longValue());
+        assertEquals(3L, bucket.counter("c", 2, 1).content().longValue());
+    }
+
+    @Test public void testSubdocumentMutationsAreAtomic() {
+        bucket.insert(JsonDocument.create("d1", JsonObject.create().put("patients", JsonArray.from("a"))));
+        bucket.async().mutateIn("d1").arrayAppend("notes", JsonObject.create().put("n", 1), new SubdocOptionsBuilder().createParents(true)).arrayAddUnique("patients", "b").execute().toBlocking().single();
+        try {
+            bucket.async().mutateIn("d1").upsert("touched", true).arrayAddUnique("patients", "a").execute().toBlocking().single();
+            fail();
+        } catch (MultiMutationException e) {
+            assertTrue(e.getCause() instanceof PathExistsException);
+        }
+        DocumentFragment<Lookup> fragment = bucket.async().lookupIn("d1").get("patients", "notes[-1].n", "touched").execute().toBlocking().single();
+        assertEquals(JsonArray.from("a", "b"), fragment.content("patients"));
+        assertEquals(1, fragment.content("notes[-1].n"));
+        assertFalse(fragment.exists("touched"));
+    }
+
+    @Test public void testQueriesByType() {
+        for(int i = 0; i < 5; i++) {
+            bucket.upsert(JsonDocument.create("a" + i, JsonObject.create().put("type", "appointment").put("doctor", "d" + (i % 2)).put("appointment", i)));
+        }
+        bucket.upsert(JsonDocument.create("p", JsonObject.create().put("type", "patient").put("doctor", "d0")));
+        N1qlQuery query = N1qlQuery.parameterized("SELECT META().id, appointment FROM `default` WHERE type = 'appointment' AND doctor = $doctor ORDER BY appointment DESC LIMIT 2",
+            JsonObject.create().put("doctor", "d0"));
+        AsyncN1qlQueryResult result = bucket.async().query(query).toBlocking().single();
+        assertTrue(result.parseSuccess());
+        List<JsonObject> rows = result.rows().map(row -> row.value()).toList().toBlocking().single();
+        assertEquals(2, rows.size());
+        assertEquals("a4", rows.get(0).getString("id"));
+        assertEquals("a2", rows.get(1).getString("id"));
+        assertFalse(bucket.async().query(N1qlQuery.simple("SELECT * FROM `default` d JOIN `default` p ON KEYS d.patients"))
+            .toBlocking().single().parseSuccess());
+    }
+
+    @Test public void testIndexesTheLatestTypeUnderConcurrentWrites() throws InterruptedException {
+        List<Thread> writers = new ArrayList<Thread>();
+        for(int t = 0; t < 4; t++) {
+            String type = t % 2 == 0 ? "patient" : "doctor";
+            Thread writer = new Thread(() -> {
+                for(int i = 0; i < 2000; i++) {
+                    bucket.upsert(JsonDocument.create("x", JsonObject.create().put("type", type)));
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+        for(Thread writer : writers) {
+            writer.join();
+        }
+        String type = bucket.get("x").content().getString("type");
+        for(String queried : Arrays.asList("patient", "doctor")) {
+            int rows = bucket.async().query(N1qlQuery.simple("SELECT META().id FROM `default` WHERE type = '" + queried + "'"))
+                .flatMap(result -> result.rows().count()).toBlocking().single();
+            assertEquals(queried.equals(type) ? 1 : 0, rows);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package couchbase;
+
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import org.junit.Test;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class InvertedIndexTest {
+
+    private static final List<String> FIELDS = Arrays.asList(InvertedIndex.FIRSTNAME, InvertedIndex.LASTNAME, InvertedIndex.MESSAGE);
+
+    @Test public void testRanksByTermFrequencyAndRarity() {
+        InvertedIndex index = new InvertedIndex();
+        index.put("p1", "Nic", "Raboy", Arrays.asList("Mild fever", "Fever and cough, fever again"));
+        index.put("p2", "Ann", "Lee", Arrays.asList("Fever"));
+        index.put("p3", "Bob", "Fever", Arrays.asList("Broken arm"));
+        index.put("p4", "Eve", "Stone", Arrays.asList("Cough"));
+        JsonObject result = index.search("fever cough", 0, FIELDS, false, 10, 0, null);
+        assertEquals(4, (int) result.getInt("total_hits"));
+        JsonArray hits = result.getArray("hits");
+        assertEquals("p1", hits.getObject(0).getString("id"));
+        assertEquals(result.getDouble("max_score"), hits.getObject(0).getDouble("score"), 0.0001);
+        assertEquals("Raboy", hits.getObject(0).getObject("fields").getString(InvertedIndex.LASTNAME));
+        assertEquals(2, hits.getObject(0).getObject("fields").getArray(InvertedIndex.MESSAGE).size());
+        assertEquals(2, index.search("fever", 0, FIELDS, false, 2, 0, null).getArray("hits").size());
+    }
+
+    @Test public void testMatchesWithinFuzziness() {
+        InvertedIndex index = new InvertedIndex();
+        index.put("p1", "Nic", "Raboy", Arrays.asList("Persistent headache"));
+        index.put("p2", "Ann", "Lee", Arrays.asList("Headaches at night"));
+        index.put("p3", "Bob", "Stone", Arrays.asList("Heartache"));
+        assertEquals(0, (int) index.search("hedache", 0, FIELDS, false, 10, 0, null).getInt("total_hits"));
+        assertEquals(new HashSet<String>(Arrays.asList("headache")), index.expand("hedache", 1).keySet());
+        assertEquals(new HashSet<String>(Arrays.asList("headache", "headaches")), index.expand("hedache", 2).keySet());
+        assertEquals(Integer.valueOf(2), index.expand("hedache", 2).get("headaches"));
+        JsonArray hits = index.search("hedache", 2, FIELDS, false, 10, 0, null).getArray("hits");
+        assertEquals(2, hits.size());
+        assertEquals("p1", hits.getObject(0).getString("id"));
+    }
+
+    @Test public void testKeepsLatestVersionOfEachPatient() {
+        InvertedIndex index = new InvertedIndex();
+        for(int i = 0; i < 3000; i++) {
+            index.addNotes("p" + (i % 10), Arrays.asList("note " + i));
+        }
+        assertEquals(10, index.size());
+        assertEquals(10, (int) index.search("note", 0, FIELDS, false, 20, 0, null).getInt("total_hits"));
+        assertEquals("p7", index.search("2997", 0, FIELDS, false, 10, 0, null).getArray("hits").getObject(0).getString("id"));
+        index.put("p7", "Nic", "Raboy", Collections.<String>emptyList());
+        assertEquals(0, (int) index.search("2997", 0, FIELDS, false, 10, 0, null).getInt("total_hits"));
+        index.delete("p7");
+        assertEquals(0, (int) index.search("raboy", 0, FIELDS, false, 10, 0, null).getInt("total_hits"));
+    }
+
+    @Test public void testHighlightsEscapedFragments() {
+        InvertedIndex index = new InvertedIndex();
+        index.put("p1", "Nic", "Raboy", Arrays.asList("Fever <b>high</b> & rising", "No complaints"));
+        JsonObject hit = index.search("fever high", 0, FIELDS, true, 10, 0, null).getArray("hits").getObject(0);
+        JsonArray fragments = hit.getObject("fragments").getArray(InvertedIndex.MESSAGE);
+        assertEquals(1, fragments.size());
+        assertEquals("<mark>Fever</mark> &lt;b&gt;<mark>high</mark>&lt;/b&gt; &amp; rising", fragments.getString(0));
+    }
+
+    @Test public void testEncodesPostingsAsVariableBytes() {
+        InvertedIndex.Postings postings = new InvertedIndex.Postings();
+        postings.add(0, 1);
+        postings.add(100, 3);
+        postings.add(100000, 200);
+        assertEquals(2 + 2 + 5, postings.bytes());
+        InvertedIndex.Postings.Reader reader = postings.reader();
+        List<Integer> decoded = new ArrayList<Integer>();
+        while(reader.next()) {
+            decoded.add(reader.doc);
+            decoded.add(reader.frequency);
+        }
+        assertEquals(Arrays.asList(0, 1, 100, 3, 100000, 200), decoded);
+    }
+
+    @Test public void testPagesBySkipAndBySearchAfter() {
+        InvertedIndex index = new InvertedIndex();
+        for(int i = 0; i < 25; i++) {
+            index.put(String.format("p%02d", i), "Nic", "Raboy", Arrays.asList(i % 2 == 0 ? "fever" : "fever fever"));
+        }
+        List<String> skipped = new ArrayList<String>();
+        List<String> after = new ArrayList<String>();
+        JsonArray cursor = null;
+        for(int page = 0; page < 3; page++) {
+            JsonArray byFrom = index.search("fever", 0, FIELDS, false, 10, page * 10, null).getArray("hits");
+            JsonArray byAfter = index.search("fever", 0, FIELDS, false, 10, 0, cursor).getArray("hits");
+            for(int i = 0; i < byFrom.size(); i++) {
+                skipped.add(byFrom.getObject(i).getString("id"));
+                after.add(byAfter.getObject(i).getString("id"));
+            }
+            cursor = byAfter.getObject(byAfter.size() - 1).getArray("sort");
+        }
+        assertEquals(25, new HashSet<String>(skipped).size());
+        assertEquals(skipped, after);
+        assertEquals("p01", skipped.get(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void testRejectsFuzzinessAboveTwo() {
+        new InvertedIndex().search("fever", 3, FIELDS, false, 10, 0, null);
+    }
+
+}
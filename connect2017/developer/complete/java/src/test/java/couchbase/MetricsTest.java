@@ -0,0 +1,49 @@
+package couchbase;
+
+import org.junit.Test;
+import rx.Observable;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    @Test public void testParsesQueryServiceDurations() {
+        assertEquals(1500000L, Metrics.parseDuration("1.5ms"));
+        assertEquals(62300000000L, Metrics.parseDuration("1m2.3s"));
+        assertEquals(812000L, Metrics.parseDuration("812\u00b5s"));
+        assertEquals(0L, Metrics.parseDuration(null));
+    }
+
+    @Test public void testScrapeReportsTimersAndErrors() {
+        Metrics metrics = new Metrics();
+        metrics.request("patients", 2000000L, true);
+        Observable.error(new IllegalStateException()).compose(source -> metrics.timed("kv", "get", source))
+            .onErrorResumeNext(Observable.empty()).subscribe();
+        String scrape = metrics.scrape();
+        assertTrue(scrape.contains("workshop_request_seconds_count{endpoint=\"patients\"} 1"));
+        assertTrue(scrape.contains("workshop_backend_seconds_errors_total{backend=\"kv\",operation=\"get\"} 1"));
+    }
+
+    @Test public void testRejectionsStayOutOfLatency() {
+        Metrics metrics = new Metrics();
+        metrics.rejected("patients");
+        String scrape = metrics.scrape();
+        assertTrue(scrape.contains("workshop_requests_rejected_total{endpoint=\"patients\"} 1"));
+        assertFalse(scrape.contains("workshop_request_seconds_count{endpoint=\"patients\"}"));
+    }
+
+    @Test public void testQuantilesCoverTheLastMinute() {
+        Metrics metrics = new Metrics();
+        long now = System.nanoTime();
+        metrics.request("patients", 2000000000L, true);
+        assertTrue(metrics.scrape(now).contains("workshop_request_seconds{endpoint=\"patients\",quantile=\"0.5\"} 2.0"));
+        metrics.request("patients", 1000000L, true);
+        String recent = metrics.scrape(now + TimeUnit.SECONDS.toNanos(59));
+        assertTrue(recent.contains("workshop_request_seconds_max{endpoint=\"patients\"} 2.0"));
+        String later = metrics.scrape(now + TimeUnit.SECONDS.toNanos(75));
+        assertTrue(later.contains("workshop_request_seconds_max{endpoint=\"patients\"} 0.001"));
+        assertTrue(later.contains("workshop_request_seconds_count{endpoint=\"patients\"} 2"));
+        assertTrue(later.contains("# TYPE workshop_request_seconds_max gauge"));
+        assertTrue(later.contains("# TYPE workshop_request_seconds_errors_total counter"));
+    }
+}
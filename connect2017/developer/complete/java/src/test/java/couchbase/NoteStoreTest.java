@@ -0,0 +1,48 @@
+package couchbase;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import org.junit.Test;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class NoteStoreTest {
+
+    @Test public void testPagesThroughNotesOfTheSameSecond() {
+        Bucket bucket = InMemoryBucket.create("default");
+        JsonArray notes = JsonArray.create();
+        for(int i = 0; i < 7; i++) {
+            notes.add(JsonObject.create().put("n", i).put("timestamp", i < 2 ? 99L : 100L));
+        }
+        bucket.insert(JsonDocument.create("p1", JsonObject.create().put("type", "patient").put("notes", notes)));
+        NoteStore store = new NoteStore(bucket, new Metrics(), "inline", false, 16);
+        List<Object> seen = new ArrayList<Object>();
+        long before = 101L;
+        int skip = 0;
+        for(int page = 0; page < 4; page++) {
+            Map<String, Object> result = store.page("p1", before, skip, 2).toBlocking().single();
+            for(Object note : (List<?>) result.get("notes")) {
+                seen.add(((Map<?, ?>) note).get("n"));
+            }
+            if(result.get("before") == null) {
+                break;
+            }
+            before = (Long) result.get("before");
+            skip = (Integer) result.get("skip");
+        }
+        assertEquals(Arrays.<Object>asList(2, 3, 4, 5, 6, 0, 1), seen);
+    }
+
+    @Test public void testWithoutSkipBeforeIsExclusive() {
+        Bucket bucket = InMemoryBucket.create("default");
+        JsonArray notes = JsonArray.from(JsonObject.create().put("n", 0).put("timestamp", 99L), JsonObject.create().put("n", 1).put("timestamp", 100L));
+        bucket.insert(JsonDocument.create("p1", JsonObject.create().put("type", "patient").put("notes", notes)));
+        NoteStore store = new NoteStore(bucket, new Metrics(), "inline", false, 16);
+        List<?> page = (List<?>) store.page("p1", 100L, Integer.MAX_VALUE, 10).toBlocking().single().get("notes");
+        assertEquals(1, page.size());
+        assertEquals(0, ((Map<?, ?>) page.get(0)).get("n"));
+    }
+
+}
@@ -0,0 +1,58 @@
+package couchbase;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import rx.Observable;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class ProjectionTest {
+
+    private final Bucket bucket = InMemoryBucket.create("default");
+
+    @Test public void testNestsRequestedPaths() {
+        bucket.insert(JsonDocument.create("p1", JsonObject.create()
+            .put("information", JsonObject.create().put("firstname", "Nic").put("lastname", "Raboy"))
+            .put("timestamp", 1)));
+        List<String> paths = Projection.paths("information.lastname, timestamp,missing");
+        Map<String, Object> projected = Projection.merge(bucket.async().lookupIn("p1").get("information.lastname", "timestamp", "missing").execute().toBlocking().single(), paths);
+        assertEquals("{\"information\":{\"lastname\":\"Raboy\"},\"timestamp\":1}", JsonObject.from(projected).toString());
+    }
+
+    @Test public void testAnswersMissingDocumentsWithNotFound() {
+        Metrics metrics = new Metrics();
+        NoteStore store = new NoteStore(bucket, metrics, "inline", false, 16);
+        List<String> paths = Projection.paths("information.lastname");
+        Object missing = Projection.read(bucket, metrics, "nobody", paths, Observable.just(null)).toBlocking().single();
+        assertEquals(HttpStatus.NOT_FOUND, ((ResponseEntity<?>) missing).getStatusCode());
+        missing = Projection.read(bucket, metrics, "nobody", paths, store.last("nobody", 5)).toBlocking().single();
+        assertEquals(HttpStatus.NOT_FOUND, ((ResponseEntity<?>) missing).getStatusCode());
+        bucket.insert(JsonDocument.create("p4", JsonObject.create().put("information", JsonObject.create().put("lastname", "Raboy"))));
+        Object found = Projection.read(bucket, metrics, "p4", paths, Observable.just(null)).toBlocking().single();
+        assertEquals(Collections.singletonMap("lastname", "Raboy"), ((Map<?, ?>) found).get("information"));
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void testRejectsIndexedPaths() {
+        Projection.paths("notes[0]");
+    }
+
+    @Test public void testReadsOnlyTheLastNotes() {
+        JsonArray notes = JsonArray.create();
+        for(int i = 0; i < 40; i++) {
+            notes.add(JsonObject.create().put("n", i));
+        }
+        bucket.insert(JsonDocument.create("p2", JsonObject.create().put("notes", notes)));
+        NoteStore store = new NoteStore(bucket, new Metrics(), "inline", false, 16);
+        List<Object> last = store.last("p2", 20).toBlocking().single();
+        assertEquals(20, last.size());
+        assertEquals(20, ((Map<?, ?>) last.get(0)).get("n"));
+        assertEquals(39, ((Map<?, ?>) last.get(19)).get("n"));
+        bucket.insert(JsonDocument.create("p3", JsonObject.create().put("type", "patient")));
+        assertEquals(Collections.emptyList(), store.last("p3", 5).toBlocking().single());
+    }
+}
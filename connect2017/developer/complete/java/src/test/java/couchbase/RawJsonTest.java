@@ -0,0 +1,20 @@
+package couchbase;
+
+import org.junit.Test;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class RawJsonTest {
+
+    @Test public void testStripsTopLevelFieldsOnly() {
+        String json = "{\"type\":\"patient\",\"notes\":[{\"doctor\":\"d1\",\"notes\":1}],\"information\":{\"notes\":\"kept\"},\"timestamp\":1}";
+        String stripped = new String(RawJson.strip(json, RawJson.fields("notes, timestamp")), StandardCharsets.UTF_8);
+        assertEquals("{\"type\":\"patient\",\"information\":{\"notes\":\"kept\"}}", stripped);
+    }
+
+    @Test public void testPassesThroughWithoutExclusions() {
+        String json = "{\"type\":\"doctor\",\"department\":\"cardiology\"}";
+        assertArrayEquals(json.getBytes(StandardCharsets.UTF_8), RawJson.response(json, RawJson.fields(null)).getBody());
+    }
+}
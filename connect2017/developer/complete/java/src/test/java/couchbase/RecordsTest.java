@@ -0,0 +1,37 @@
+package couchbase;
+
+import com.couchbase.client.java.document.json.JsonObject;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RecordsTest {
+
+    @Test public void testPatientRequiresInformation() {
+        assertEquals("An `information` object is required", Records.validate("patient", JsonObject.create()));
+        assertNull(Records.validate("patient", JsonObject.create().put("information", JsonObject.create())));
+    }
+
+    @Test public void testDoctorRequiresDepartment() {
+        JsonObject doctor = JsonObject.create().put("information", JsonObject.create()).put("department", "");
+        assertEquals("A `department` string is required", Records.validate("doctor", doctor));
+        assertNull(Records.validate("doctor", doctor.put("department", "cardiology")));
+    }
+
+    @Test public void testAppointmentRequiresTime() {
+        JsonObject appointment = JsonObject.create().put("doctor", "d1").put("patient", "p1");
+        assertEquals("A `appointment` unix time is required", Records.validate("appointment", appointment));
+        assertNull(Records.validate("appointment", appointment.put("appointment", 1508371200L)));
+    }
+
+    @Test public void testWronglyTypedFieldsAreInvalid() {
+        JsonObject appointment = JsonObject.create().put("doctor", 5).put("patient", "p1").put("appointment", 1508371200L);
+        assertEquals("A `doctor` string is required", Records.validate("appointment", appointment));
+        assertEquals("A `appointment` unix time is required", Records.validate("appointment", appointment.put("doctor", "d1").put("appointment", "soon")));
+        assertEquals("An `information` object is required", Records.validate("patient", JsonObject.create().put("information", "Nic")));
+    }
+
+    @Test public void testUnknownType() {
+        assertNotNull(Records.validate(null, JsonObject.create()));
+        assertNotNull(Records.validate("nurse", JsonObject.create()));
+    }
+}
@@ -0,0 +1,74 @@
+package couchbase;
+
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import org.junit.Test;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class SearchHitsTest {
+
+    private static final String RESPONSE = "{\"status\":{\"total\":1,\"failed\":0,\"successful\":1},\"request\":{\"size\":3},"
+        + "\"hits\":[{\"id\":\"p1\",\"score\":2.5,\"sort\":[\"2.5\",\"p1\"]},{\"id\":\"p2\",\"score\":1.5,\"sort\":[\"1.5\",\"p2\"]},"
+        + "{\"id\":\"p3\",\"score\":0.5,\"sort\":[\"0.5\",\"p3\"]}],\"total_hits\":42,\"max_score\":2.5,\"took\":1234,\"facets\":{}}";
+
+    @Test public void testReadsHitsOneAtATime() {
+        SearchHits hits = new SearchHits(RESPONSE, null, 3);
+        List<String> ids = new ArrayList<String>();
+        while(hits.hasNext()) {
+            ids.add(JsonObject.fromJson(new String(hits.next(), StandardCharsets.UTF_8)).getString("id"));
+        }
+        assertEquals(Arrays.asList("p1", "p2", "p3"), ids);
+        JsonObject summary = hits.summary();
+        assertEquals(42L, (long) summary.getLong("total_hits"));
+        assertEquals(2.5, summary.getDouble("max_score"), 0.0);
+        assertEquals(JsonArray.from("0.5", "p3"), JsonArray.fromJson(ContinuationToken.decode(summary.getString("next"))));
+    }
+
+    @Test public void testStopsAtMinimumScore() {
+        SearchHits hits = new SearchHits(RESPONSE, 1.0, 3);
+        int count = 0;
+        while(hits.hasNext()) {
+            hits.next();
+            count++;
+        }
+        assertEquals(2, count);
+        assertNull(hits.summary().get("next"));
+        assertEquals(42L, (long) hits.summary().getLong("total_hits"));
+    }
+
+    @Test public void testReportsFailedPartitions() {
+        SearchHits hits = new SearchHits("{\"status\":{\"total\":2,\"failed\":1,\"successful\":1,\"errors\":{\"pindex_1\":\"timeout\"}},"
+            + "\"hits\":[{\"id\":\"p1\",\"score\":2.5,\"sort\":[\"2.5\",\"p1\"]}],\"total_hits\":1}", null, 10);
+        while(hits.hasNext()) {
+            hits.next();
+        }
+        JsonObject status = hits.summary().getObject("status");
+        assertEquals(1, (int) status.getInt("failed"));
+        assertEquals("timeout", status.getObject("errors").getString("pindex_1"));
+    }
+
+    @Test public void testPagesLikeTheStream() {
+        for(Double minScore : Arrays.asList(null, 1.0)) {
+            for(int size = 2; size <= 3; size++) {
+                ConditionSearch.Query query = new ConditionSearch.Query("fever", null, Collections.<String>emptyList(), false, size, 0, minScore, null);
+                Map<String, Object> page = ConditionSearch.page(JsonObject.fromJson(RESPONSE), query);
+                SearchHits hits = new SearchHits(RESPONSE, minScore, size);
+                int count = 0;
+                while(hits.hasNext()) {
+                    hits.next();
+                    count++;
+                }
+                assertEquals(count, ((List<?>) page.get("hits")).size());
+                assertEquals(hits.summary().get("next"), page.get("next"));
+                assertEquals(42, page.get("total_hits"));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void testRejectsFromWithCursor() {
+        new ConditionSearch.Query("fever", null, Collections.<String>emptyList(), false, 10, 10, null, ContinuationToken.encode("[\"1.0\",\"p1\"]"));
+    }
+
+}
@@ -0,0 +1,47 @@
+package couchbase;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.json.JsonObject;
+import org.junit.Test;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class SlotReservationsTest {
+
+    private static final long NINE = 1508403600L;
+
+    private final Bucket bucket = InMemoryBucket.create("default");
+
+    private final SlotReservations reservations = new SlotReservations(bucket, new Metrics(), true, 15, 32, 24);
+
+    private static JsonObject appointment(long start, long duration) {
+        return JsonObject.create().put("doctor", "d1").put("patient", "p1").put("appointment", start).put("duration", duration);
+    }
+
+    @Test public void testSlotsCoverTheWholeDuration() {
+        assertEquals(Arrays.asList(NINE, NINE + 900), reservations.slots(NINE + 60, 900));
+        assertEquals(Collections.singletonList(NINE), reservations.slots(NINE, 0));
+        assertEquals("slot::d1::201710190900", SlotReservations.key("d1", NINE));
+        assertNotNull(reservations.validate(appointment(NINE, -1)));
+        assertNotNull(reservations.validate(appointment(NINE, 86400)));
+    }
+
+    @Test public void testSlotsExpireAfterTheyEnd() {
+        assertEquals(NINE + 900 + 24 * 3600, reservations.expiry(NINE, NINE - 86400));
+        assertEquals(NINE + 86400 + 24 * 3600, reservations.expiry(NINE, NINE + 86400));
+    }
+
+    @Test public void testOverlappingBookingFailsAndRollsBack() {
+        assertEquals(2, reservations.reserve("a1", appointment(NINE, 1800)).toBlocking().single().size());
+        try {
+            reservations.reserve("a2", appointment(NINE - 900, 1800)).toBlocking().single();
+            fail();
+        } catch (SlotReservations.Conflict e) {
+            assertEquals(Collections.singletonList("slot::d1::201710190900"), e.slots());
+        }
+        assertFalse(bucket.exists(SlotReservations.key("d1", NINE - 900)));
+        assertEquals(2, reservations.release("a1", "d1", NINE, 1800).toBlocking().single().intValue());
+        assertEquals(2, reservations.reserve("a2", appointment(NINE - 900, 1800)).toBlocking().single().size());
+        assertEquals(0, reservations.release("a1", "d1", NINE, 1800).toBlocking().single().intValue());
+    }
+}
@@ -0,0 +1,27 @@
+package couchbase;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import org.junit.Test;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class StatementRegistryTest {
+
+    @Test public void testCountsErrorsReportedInTheResponse() {
+        Bucket bucket = InMemoryBucket.create("default");
+        bucket.insert(JsonDocument.create("p1", JsonObject.create().put("type", "patient")));
+        Metrics metrics = new Metrics();
+        StatementRegistry statements = new StatementRegistry(bucket, metrics);
+        assertEquals(1, (int) statements.query("patients").flatMap(result -> result.rows().count()).toBlocking().single());
+        // the in-memory bucket answers the UNNEST with an error in the response, not a failed stream
+        assertEquals(0, (int) statements.query("stats.notes").flatMap(result -> result.rows().count()).toBlocking().single());
+        assertEquals(0L, ((Map<?, ?>) statements.stats().get("patients")).get("errors"));
+        assertEquals(1L, ((Map<?, ?>) statements.stats().get("stats.notes")).get("errors"));
+        String scrape = metrics.scrape();
+        assertTrue(scrape.contains("workshop_backend_seconds_errors_total{backend=\"n1ql\",operation=\"stats.notes\"} 1"));
+        assertTrue(scrape.contains("workshop_backend_seconds_errors_total{backend=\"n1ql\",operation=\"patients\"} 0"));
+    }
+
+}
@@ -0,0 +1,27 @@
+package couchbase;
+
+import org.junit.Test;
+import java.util.*;
+import static org.junit.Assert.*;
+
+public class WorkloadTest {
+
+    @Test public void testZipfFavoursLowIndexes() {
+        Workload.Zipf zipf = new Workload.Zipf(100, 1.1);
+        Random random = new Random(1);
+        int[] counts = new int[100];
+        for(int i = 0; i < 100000; i++) {
+            counts[zipf.next(random)]++;
+        }
+        assertTrue(counts[0] > 10 * counts[50]);
+        assertTrue(counts[99] > 0);
+    }
+
+    @Test public void testRecordsAreReproducible() {
+        Workload first = new Workload(10, 100, 100, 1505088000L);
+        Workload second = new Workload(10, 100, 100, 1505088000L);
+        assertEquals(first.patient(7), second.patient(7));
+        assertEquals(first.appointment(3), second.appointment(3));
+        assertEquals(Workload.patientId(7), first.patient(7).getString("id"));
+    }
+}